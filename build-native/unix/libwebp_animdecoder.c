@@ -16,6 +16,18 @@ int main() {
 	int* timestamp;
 	WebPAnimDecoderGetNext(dec, buf, timestamp);
 	WebPAnimDecoderDelete(dec);
+	WebPDemuxer* demux = WebPDemux(data);
+	WebPIterator iter;
+	WebPDemuxGetFrame(demux, 1, &iter);
+	WebPDemuxNextFrame(&iter);
+	WebPDemuxReleaseIterator(&iter);
+	WebPDemuxGetI(demux, WEBP_FF_CANVAS_WIDTH);
+	WebPDemuxDelete(demux);
+	WebPDecoderConfig config;
+	WebPInitDecoderConfig(&config);
+	WebPDecode(buf[0], 30, &config);
+	WebPFreeDecBuffer(&config.output);
+	WebPGetFeatures(buf[0], 30, &config.input);
 	WebPMalloc(30);
 	WebPFree(dec);
 }
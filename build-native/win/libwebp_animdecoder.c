@@ -10,6 +10,16 @@
 #pragma comment(linker, "/export:WebPAnimDecoderHasMoreFrames")
 #pragma comment(linker, "/export:WebPAnimDecoderDelete")
 #pragma comment(linker, "/export:WebPAnimDecoderGetNext")
+#pragma comment(linker, "/export:WebPDemuxInternal")
+#pragma comment(linker, "/export:WebPDemuxDelete")
+#pragma comment(linker, "/export:WebPDemuxGetFrame")
+#pragma comment(linker, "/export:WebPDemuxNextFrame")
+#pragma comment(linker, "/export:WebPDemuxReleaseIterator")
+#pragma comment(linker, "/export:WebPDemuxGetI")
+#pragma comment(linker, "/export:WebPInitDecoderConfigInternal")
+#pragma comment(linker, "/export:WebPDecode")
+#pragma comment(linker, "/export:WebPFreeDecBuffer")
+#pragma comment(linker, "/export:WebPGetFeaturesInternal")
 #else
 #pragma comment(linker, "/export:_WebPMalloc")
 #pragma comment(linker, "/export:_WebPFree")
@@ -18,4 +28,14 @@
 #pragma comment(linker, "/export:_WebPAnimDecoderHasMoreFrames")
 #pragma comment(linker, "/export:_WebPAnimDecoderDelete")
 #pragma comment(linker, "/export:_WebPAnimDecoderGetNext")
+#pragma comment(linker, "/export:_WebPDemuxInternal")
+#pragma comment(linker, "/export:_WebPDemuxDelete")
+#pragma comment(linker, "/export:_WebPDemuxGetFrame")
+#pragma comment(linker, "/export:_WebPDemuxNextFrame")
+#pragma comment(linker, "/export:_WebPDemuxReleaseIterator")
+#pragma comment(linker, "/export:_WebPDemuxGetI")
+#pragma comment(linker, "/export:_WebPInitDecoderConfigInternal")
+#pragma comment(linker, "/export:_WebPDecode")
+#pragma comment(linker, "/export:_WebPFreeDecBuffer")
+#pragma comment(linker, "/export:_WebPGetFeaturesInternal")
 #endif
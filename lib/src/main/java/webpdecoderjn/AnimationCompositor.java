@@ -0,0 +1,220 @@
+package webpdecoderjn;
+
+import com.sun.jna.Pointer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Composes individually decoded animation frames (fragments) onto the canvas,
+ * applying the dispose and blend rules of each frame. This follows what the
+ * libwebp {@code WebPAnimDecoder} does natively (anim_decode.c), so the
+ * result should be identical.
+ *
+ * <p>
+ * Pixels are in the format returned by the native decoder in RGBA mode (RGBA
+ * bytes read as a little-endian int, so {@code 0xAABBGGRR}), non-premultiplied.
+ *
+ * @author tduva
+ */
+class AnimationCompositor {
+
+    private final int canvasWidth;
+    private final int canvasHeight;
+
+    private Frame prevFrame;
+    private int[] prevCanvasDisposed;
+
+    AnimationCompositor(int canvasWidth, int canvasHeight) {
+        this.canvasWidth = canvasWidth;
+        this.canvasHeight = canvasHeight;
+    }
+
+    /**
+     * Compose the next frame. The first frame given must be a key frame.
+     *
+     * @param frame The frame info
+     * @param keyFrame Whether the frame is a key frame (see
+     * {@link #findKeyFrames(List, int, int)})
+     * @param pixels The decoded pixels of the frame (with the size of the
+     * frame, not the canvas)
+     * @return A new array containing the full canvas
+     */
+    public int[] compose(Frame frame, boolean keyFrame, int[] pixels) {
+        int[] canvas;
+        if (keyFrame || prevCanvasDisposed == null) {
+            canvas = new int[canvasWidth * canvasHeight];
+        }
+        else {
+            canvas = prevCanvasDisposed.clone();
+        }
+
+        boolean blend = !keyFrame && prevFrame != null && frame.blend == Frame.BLEND;
+        for (int y = 0; y < frame.height; y++) {
+            int canvasY = frame.y + y;
+            int src = y * frame.width;
+            int dst = canvasY * canvasWidth + frame.x;
+            if (!blend) {
+                System.arraycopy(pixels, src, canvas, dst, frame.width);
+            }
+            else if (prevFrame.dispose == Frame.DISPOSE_NONE) {
+                blendRow(pixels, src, canvas, dst, frame.width);
+            }
+            else {
+                // The area of the previous frame has been cleared, so only
+                // blend outside of it (blending with transparent pixels would
+                // change the frame pixels slightly due to rounding)
+                int prevMaxX = prevFrame.x + prevFrame.width;
+                int prevMaxY = prevFrame.y + prevFrame.height;
+                int maxX = frame.x + frame.width;
+                if (canvasY < prevFrame.y || canvasY >= prevMaxY
+                        || frame.x >= prevMaxX || maxX <= prevFrame.x) {
+                    blendRow(pixels, src, canvas, dst, frame.width);
+                }
+                else {
+                    // Blend left and right of the previous frame, copy inside
+                    int left = Math.max(prevFrame.x - frame.x, 0);
+                    int right = Math.min(prevMaxX - frame.x, frame.width);
+                    blendRow(pixels, src, canvas, dst, left);
+                    System.arraycopy(pixels, src + left, canvas, dst + left, right - left);
+                    blendRow(pixels, src + right, canvas, dst + right, frame.width - right);
+                }
+            }
+        }
+
+        if (frame.dispose == Frame.DISPOSE_BACKGROUND) {
+            prevCanvasDisposed = canvas.clone();
+            for (int y = 0; y < frame.height; y++) {
+                int start = (frame.y + y) * canvasWidth + frame.x;
+                Arrays.fill(prevCanvasDisposed, start, start + frame.width, 0);
+            }
+        }
+        else {
+            // Not modified afterwards, so no copy needed
+            prevCanvasDisposed = canvas;
+        }
+        prevFrame = frame;
+        return canvas;
+    }
+
+    /**
+     * Determine which frames are key frames, which means they don't depend on
+     * any previous frames.
+     *
+     * @param frames All frames of the animation, in order
+     * @param canvasWidth The canvas width
+     * @param canvasHeight The canvas height
+     * @return An array with the same size as the list of frames
+     */
+    public static boolean[] findKeyFrames(List<Frame> frames, int canvasWidth, int canvasHeight) {
+        boolean[] result = new boolean[frames.size()];
+        for (int i = 0; i < frames.size(); i++) {
+            Frame frame = frames.get(i);
+            if (i == 0) {
+                result[i] = true;
+            }
+            else if ((!frame.hasAlpha || frame.blend == Frame.NO_BLEND)
+                    && frame.isFullFrame(canvasWidth, canvasHeight)) {
+                result[i] = true;
+            }
+            else {
+                Frame prev = frames.get(i - 1);
+                result[i] = prev.dispose == Frame.DISPOSE_BACKGROUND
+                        && (prev.isFullFrame(canvasWidth, canvasHeight) || result[i - 1]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Blend the given source pixels onto the destination, storing the result
+     * in the destination.
+     */
+    private static void blendRow(int[] src, int srcOffset, int[] dst, int dstOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            int srcPixel = src[srcOffset + i];
+            if ((srcPixel >>> 24) != 0xFF) {
+                dst[dstOffset + i] = blendPixel(srcPixel, dst[dstOffset + i]);
+            }
+            else {
+                dst[dstOffset + i] = srcPixel;
+            }
+        }
+    }
+
+    /**
+     * Blend non-premultiplied pixels ("src over dst"), same as libwebp's
+     * BlendPixelNonPremult().
+     */
+    private static int blendPixel(int src, int dst) {
+        int srcA = src >>> 24;
+        if (srcA == 0) {
+            return dst;
+        }
+        int dstA = dst >>> 24;
+        int dstFactorA = (dstA * (256 - srcA)) >> 8;
+        int blendA = srcA + dstFactorA;
+        long scale = (1L << 24) / blendA;
+        int r = blendChannel(src, srcA, dst, dstFactorA, scale, 0);
+        int g = blendChannel(src, srcA, dst, dstFactorA, scale, 8);
+        int b = blendChannel(src, srcA, dst, dstFactorA, scale, 16);
+        return r | (g << 8) | (b << 16) | (blendA << 24);
+    }
+
+    private static int blendChannel(int src, int srcA, int dst, int dstA, long scale, int shift) {
+        int srcChannel = (src >>> shift) & 0xFF;
+        int dstChannel = (dst >>> shift) & 0xFF;
+        long blendUnscaled = srcChannel * srcA + dstChannel * dstA;
+        return (int) ((blendUnscaled * scale) >>> 24) & 0xFF;
+    }
+
+    /**
+     * Info about a single frame of an animation, as returned by the demuxer.
+     */
+    static class Frame {
+
+        public static final int DISPOSE_NONE = 0;
+        public static final int DISPOSE_BACKGROUND = 1;
+        public static final int BLEND = 0;
+        public static final int NO_BLEND = 1;
+
+        /**
+         * Index of the frame (starting at 0).
+         */
+        public final int index;
+        public final int x;
+        public final int y;
+        public final int width;
+        public final int height;
+        public final int duration;
+        public final int dispose;
+        public final int blend;
+        public final boolean hasAlpha;
+
+        /**
+         * The encoded frame data (pointing into the native input buffer).
+         */
+        public final Pointer data;
+        public final long size;
+
+        Frame(int index, int x, int y, int width, int height, int duration,
+              int dispose, int blend, boolean hasAlpha, Pointer data, long size) {
+            this.index = index;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.duration = duration;
+            this.dispose = dispose;
+            this.blend = blend;
+            this.hasAlpha = hasAlpha;
+            this.data = data;
+            this.size = size;
+        }
+
+        public boolean isFullFrame(int canvasWidth, int canvasHeight) {
+            return width == canvasWidth && height == canvasHeight;
+        }
+
+    }
+
+}
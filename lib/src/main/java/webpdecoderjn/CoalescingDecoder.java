@@ -0,0 +1,183 @@
+package webpdecoderjn;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import webpdecoderjn.WebPDecoder.DecodeOptions;
+import webpdecoderjn.WebPDecoder.WebPDecoderCancelledException;
+import webpdecoderjn.WebPDecoder.WebPDecoderException;
+import webpdecoderjn.WebPDecoder.WebPImage;
+
+/**
+ * Coalesces concurrent decodes of the same image, so that when several threads
+ * request the same image at the same time it is only decoded once and all of
+ * them receive the same {@link WebPImage}.
+ *
+ * <p>
+ * Only decodes that are in progress at the same time are shared, results are
+ * not cached afterwards. Each caller gets its own {@link WebPImage} and list
+ * of frames, but the frame images are shared, so they must not be modified.
+ *
+ * <p>
+ * Only complete results and errors in the image itself are shared. If the
+ * decode is cancelled or returns a partial result (through the cancellation
+ * check or time limit of the options, which are evaluated for the caller
+ * that is decoding), the waiting callers decode the image themselves.
+ *
+ * <p>
+ * Images are identified by a SHA-256 hash of the data or by a key given by
+ * the caller. All decodes through the same instance use the same
+ * {@link DecodeOptions}, so the options don't have to be part of the key.
+ *
+ * @author tduva
+ */
+public class CoalescingDecoder {
+
+    private final ConcurrentHashMap<Object, CompletableFuture<WebPImage>> inFlight = new ConcurrentHashMap<>();
+    private final DecodeOptions options;
+
+    /**
+     * Create a new instance using the default options.
+     */
+    public CoalescingDecoder() {
+        this(null);
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param options The options used for all decodes, may be {@code null} to
+     * use the defaults (should not be modified afterwards)
+     */
+    public CoalescingDecoder(DecodeOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * Decode the image, or wait for the result if the same data is already
+     * being decoded.
+     *
+     * @param rawData The raw bytes of the image
+     * @return A decoded {@link WebPImage}, the frame images may be shared with
+     * other callers
+     * @throws WebPDecoderException When the decoder encounters an issue (e.g.
+     * if it's not a valid WebP file)
+     * @throws UnsatisfiedLinkError When there was an issue loading the native
+     * libraries (note that this is an error, not an exception)
+     */
+    public WebPImage decode(byte[] rawData) throws WebPDecoderException,
+                                                   UnsatisfiedLinkError {
+        return decode(hash(rawData), rawData);
+    }
+
+    /**
+     * Decode the image, or wait for the result if an image with the same key
+     * is already being decoded.
+     *
+     * @param key A key identifying the image (for example the URL), must
+     * implement {@code equals()} and {@code hashCode()}
+     * @param rawData The raw bytes of the image
+     * @return A decoded {@link WebPImage}, the frame images may be shared with
+     * other callers
+     * @throws WebPDecoderException When the decoder encounters an issue (e.g.
+     * if it's not a valid WebP file)
+     * @throws UnsatisfiedLinkError When there was an issue loading the native
+     * libraries (note that this is an error, not an exception)
+     */
+    public WebPImage decode(Object key, byte[] rawData) throws WebPDecoderException,
+                                                               UnsatisfiedLinkError {
+        CompletableFuture<WebPImage> own = new CompletableFuture<>();
+        CompletableFuture<WebPImage> existing = inFlight.putIfAbsent(key, own);
+        if (existing != null) {
+            WebPImage shared = await(existing);
+            if (shared == null) {
+                // Not shared, so the options apply to this caller as well
+                return WebPDecoder.decode(rawData, options);
+            }
+            return copy(shared);
+        }
+        // No lock is held here, other callers just wait on the future
+        try {
+            WebPImage result = WebPDecoder.decode(rawData, options);
+            own.complete(result.complete ? result : null);
+            return result;
+        }
+        catch (WebPDecoderCancelledException ex) {
+            own.complete(null);
+            throw ex;
+        }
+        catch (WebPDecoderException | RuntimeException | Error ex) {
+            own.completeExceptionally(ex);
+            throw ex;
+        }
+        finally {
+            inFlight.remove(key, own);
+        }
+    }
+
+    /**
+     * The number of different images currently being decoded.
+     *
+     * @return The number of decodes in progress
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Wait for the result of another caller.
+     *
+     * @return The result, or {@code null} if it can't be shared
+     */
+    private static WebPImage await(CompletableFuture<WebPImage> future) throws WebPDecoderException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new WebPDecoderCancelledException("Interrupted while waiting for decode");
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof WebPDecoderException) {
+                // New exception with the stack trace of this thread
+                WebPDecoderException result = new WebPDecoderException(cause.getMessage());
+                result.initCause(cause);
+                throw result;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new WebPDecoderException(String.valueOf(cause));
+        }
+    }
+
+    /**
+     * A new image with its own list of frames, so callers can modify the list
+     * without affecting each other.
+     */
+    private static WebPImage copy(WebPImage image) {
+        return new WebPImage(new ArrayList<>(image.frames), image.canvasWidth, image.canvasHeight,
+                image.loopCount, image.bgColor, image.frameCount, image.duration, image.complete);
+    }
+
+    private static Object hash(byte[] data) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            // ByteBuffer implements equals/hashCode based on the content
+            return ByteBuffer.wrap(digest.digest(data));
+        }
+        catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+}
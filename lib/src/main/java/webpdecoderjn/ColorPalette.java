@@ -0,0 +1,132 @@
+package webpdecoderjn;
+
+import java.awt.image.IndexColorModel;
+
+/**
+ * Collects up to 256 distinct colors from decoded frames so they can be stored
+ * as indexed (8-bit) images with a shared palette.
+ *
+ * <p>
+ * Colors are in the format returned by the native decoder (RGBA bytes read as
+ * a little-endian int, so {@code 0xAABBGGRR}).
+ *
+ * @author tduva
+ */
+class ColorPalette {
+
+    public static final int MAX_COLORS = 256;
+
+    // Open addressing hash table, size must be a power of two
+    private static final int TABLE_SIZE = 1024;
+    private static final int TABLE_MASK = TABLE_SIZE - 1;
+
+    private final int[] tableColors = new int[TABLE_SIZE];
+    private final int[] tableIndices = new int[TABLE_SIZE];
+    private final boolean[] tableUsed = new boolean[TABLE_SIZE];
+
+    private final int[] colors = new int[MAX_COLORS];
+    private int size;
+
+    /**
+     * Convert the given pixels to palette indices, adding new colors to the
+     * palette as necessary.
+     *
+     * @param pixels The pixels
+     * @return The palette indices, or {@code null} if the pixels contain more
+     * colors than fit into the palette (the palette may contain some of the
+     * new colors in that case, which doesn't affect frames converted earlier)
+     */
+    public byte[] toIndices(int[] pixels) {
+        byte[] result = new byte[pixels.length];
+        int prevColor = 0;
+        int prevIndex = -1;
+        for (int i = 0; i < pixels.length; i++) {
+            int color = pixels[i];
+            // Neighbouring pixels often have the same color
+            if (color != prevColor || prevIndex == -1) {
+                prevIndex = indexOf(color);
+                if (prevIndex == -1) {
+                    return null;
+                }
+                prevColor = color;
+            }
+            result[i] = (byte) prevIndex;
+        }
+        return result;
+    }
+
+    /**
+     * Convert palette indices back into pixels.
+     *
+     * @param indices The palette indices
+     * @return The pixels
+     */
+    public int[] toPixels(byte[] indices) {
+        int[] result = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            result[i] = colors[indices[i] & 0xFF];
+        }
+        return result;
+    }
+
+    /**
+     * Create a color model containing the colors currently in the palette.
+     *
+     * @return The color model
+     */
+    public IndexColorModel createColorModel() {
+        return createColorModel(colors, size);
+    }
+
+    /**
+     * Create a color model containing the given colors.
+     *
+     * @param colors The colors (in the native decoder format)
+     * @param size How many entries of the colors array to use
+     * @return The color model
+     */
+    public static IndexColorModel createColorModel(int[] colors, int size) {
+        // IndexColorModel requires at least one entry
+        int count = Math.max(size, 1);
+        byte[] r = new byte[count];
+        byte[] g = new byte[count];
+        byte[] b = new byte[count];
+        byte[] a = new byte[count];
+        for (int i = 0; i < size; i++) {
+            int color = colors[i];
+            r[i] = (byte) color;
+            g[i] = (byte) (color >> 8);
+            b[i] = (byte) (color >> 16);
+            a[i] = (byte) (color >>> 24);
+        }
+        return new IndexColorModel(8, count, r, g, b, a);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int indexOf(int color) {
+        int slot = hash(color);
+        while (tableUsed[slot]) {
+            if (tableColors[slot] == color) {
+                return tableIndices[slot];
+            }
+            slot = (slot + 1) & TABLE_MASK;
+        }
+        if (size == MAX_COLORS) {
+            return -1;
+        }
+        tableUsed[slot] = true;
+        tableColors[slot] = color;
+        tableIndices[slot] = size;
+        colors[size] = color;
+        return size++;
+    }
+
+    private static int hash(int color) {
+        int h = color * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & TABLE_MASK;
+    }
+
+}
@@ -0,0 +1,152 @@
+package webpdecoderjn;
+
+import java.awt.Dimension;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import webpdecoderjn.WebPDecoder.DecodeOptions;
+import webpdecoderjn.WebPDecoder.DecodeQuality;
+import webpdecoderjn.WebPDecoder.WebPDecoderCancelledException;
+import webpdecoderjn.WebPDecoder.WebPImage;
+
+/**
+ * The main class of the worker processes started by {@link WebPWorkerPool}.
+ * Reads decode requests from stdin and answers on stdout, the decoded image is
+ * written to the file given in the request (see {@link FrameFile}).
+ *
+ * <p>
+ * Request: command, options, result file path, length and bytes of the image.
+ * Response: status and for anything but {@link #STATUS_OK} an error message.
+ * The worker exits when stdin is closed.
+ *
+ * @author tduva
+ */
+class DecodeWorker {
+
+    private static final Logger LOGGER = Logger.getLogger(DecodeWorker.class.getName());
+
+    /**
+     * Sent once after starting, so the pool knows the worker is running.
+     */
+    static final int READY = 0x57504457;
+
+    static final int COMMAND_DECODE = 1;
+
+    static final int STATUS_OK = 0;
+    static final int STATUS_ERROR = 1;
+    static final int STATUS_CANCELLED = 2;
+    static final int STATUS_LINK_ERROR = 3;
+
+    public static void main(String[] args) throws IOException {
+        // Only the protocol may be written to stdout
+        PrintStream stdout = System.out;
+        System.setOut(System.err);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stdout));
+
+        try {
+            WebPDecoder.init();
+        }
+        catch (IOException ex) {
+            // May still be found by JNA, otherwise each decode will fail
+            LOGGER.warning("Failed extracting native library: " + ex);
+        }
+        out.writeInt(READY);
+        out.flush();
+
+        while (true) {
+            int command;
+            try {
+                command = in.readInt();
+            }
+            catch (EOFException ex) {
+                // Pool closed the connection
+                return;
+            }
+            if (command != COMMAND_DECODE) {
+                throw new IOException("Unknown command " + command);
+            }
+            DecodeOptions options = readOptions(in);
+            Path file = Paths.get(in.readUTF());
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+
+            boolean exit = false;
+            try {
+                WebPImage image = WebPDecoder.decode(data, options);
+                FrameFile.write(image, file);
+                out.writeInt(STATUS_OK);
+            }
+            catch (WebPDecoderCancelledException ex) {
+                writeError(out, STATUS_CANCELLED, ex);
+            }
+            catch (IOException | RuntimeException ex) {
+                writeError(out, STATUS_ERROR, ex);
+            }
+            catch (UnsatisfiedLinkError ex) {
+                writeError(out, STATUS_LINK_ERROR, ex);
+            }
+            catch (OutOfMemoryError ex) {
+                // Let the pool start a fresh worker
+                writeError(out, STATUS_ERROR, ex);
+                exit = true;
+            }
+            out.flush();
+            if (exit) {
+                System.exit(1);
+            }
+        }
+    }
+
+    private static void writeError(DataOutputStream out, int status, Throwable ex) throws IOException {
+        out.writeInt(status);
+        out.writeUTF(String.valueOf(ex.getMessage()));
+    }
+
+    /**
+     * Write the options that are supported by the worker. The cancellation
+     * check and executor can't be transferred.
+     */
+    static void writeOptions(DataOutputStream out, DecodeOptions options) throws IOException {
+        out.writeBoolean(options.isIndexedColor());
+        out.writeLong(options.getTimeLimit());
+        out.writeBoolean(options.isPartialResult());
+        out.writeInt(options.getMaxFrames());
+        out.writeInt(options.getFrameIndex());
+        out.writeInt(options.getQuality().ordinal());
+        List<Dimension> sizes = options.getSizes();
+        out.writeInt(sizes != null ? sizes.size() : 0);
+        if (sizes != null) {
+            for (Dimension size : sizes) {
+                out.writeInt(size.width);
+                out.writeInt(size.height);
+            }
+        }
+    }
+
+    static DecodeOptions readOptions(DataInputStream in) throws IOException {
+        DecodeOptions options = new DecodeOptions()
+                .setIndexedColor(in.readBoolean())
+                .setTimeLimit(in.readLong())
+                .setPartialResult(in.readBoolean())
+                .setMaxFrames(in.readInt())
+                .setFrameIndex(in.readInt())
+                .setQuality(DecodeQuality.values()[in.readInt()]);
+        int sizeCount = in.readInt();
+        List<Dimension> sizes = new ArrayList<>();
+        for (int i = 0; i < sizeCount; i++) {
+            sizes.add(new Dimension(in.readInt(), in.readInt()));
+        }
+        return options.setSizes(sizes);
+    }
+
+}
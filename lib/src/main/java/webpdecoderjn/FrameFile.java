@@ -0,0 +1,444 @@
+package webpdecoderjn;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import webpdecoderjn.WebPDecoder.WebPDecoderException;
+import webpdecoderjn.WebPDecoder.WebPImage;
+import webpdecoderjn.WebPDecoder.WebPImageFrame;
+
+/**
+ * Stores a decoded {@link WebPImage} (meta info and raw frame pixels) in a
+ * file and reads it back using memory-mapping, without any native decoding.
+ *
+ * <p>
+ * Format (little-endian): magic, version, canvas width, canvas height, loop
+ * count, background color, frame count, duration, complete flag, number of
+ * stored frames. Then for each frame: timestamp, delay, number of images
+ * (the resolutions, smallest first) and for each image: width, height, type
+ * and depending on the type either the pixels as ints or the palette size,
+ * palette and the pixels as bytes (padded to 4 bytes).
+ *
+ * <p>
+ * The file is mapped in windows of up to {@link #WINDOW_SIZE} bytes, since a
+ * single mapping is limited to {@code Integer.MAX_VALUE} bytes.
+ *
+ * @author tduva
+ */
+class FrameFile {
+
+    /**
+     * "WPDC" when read as bytes.
+     */
+    private static final int MAGIC = 0x43445057;
+
+    /**
+     * Increase when the format changes, files with a different version are
+     * ignored.
+     */
+    static final int VERSION = 2;
+
+    private static final int TYPE_RGBA = 1;
+    private static final int TYPE_INDEXED = 2;
+
+    static final int WINDOW_SIZE = 1 << 30;
+
+    private static final int HEADER_SIZE = 10 * 4;
+    private static final int FRAME_HEADER_SIZE = 3 * 4;
+    private static final int IMAGE_HEADER_SIZE = 3 * 4;
+
+    /**
+     * Write the image to the given file, replacing any existing content.
+     *
+     * @param image The image
+     * @param file The file
+     * @throws IOException If writing the file fails
+     */
+    public static void write(WebPImage image, Path file) throws IOException {
+        List<FrameData> frames = new ArrayList<>();
+        long size = HEADER_SIZE;
+        for (WebPImageFrame frame : image.frames) {
+            FrameData data = new FrameData(frame);
+            frames.add(data);
+            size += data.size();
+        }
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedFile buffer = new MappedFile(channel, FileChannel.MapMode.READ_WRITE, size);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(image.canvasWidth);
+            buffer.putInt(image.canvasHeight);
+            buffer.putInt(image.loopCount);
+            buffer.putInt(image.bgColor.getRGB());
+            buffer.putInt(image.frameCount);
+            buffer.putInt(image.duration);
+            buffer.putInt(image.complete ? 1 : 0);
+            buffer.putInt(frames.size());
+            for (FrameData frame : frames) {
+                frame.write(buffer);
+            }
+            buffer.force();
+        }
+    }
+
+    /**
+     * Read an image from the given file.
+     *
+     * @param file The file
+     * @return The image
+     * @throws IOException If reading the file fails or it is not a valid file
+     * (a {@link WebPDecoderException} in the latter case)
+     */
+    public static WebPImage read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedFile buffer = new MappedFile(channel, FileChannel.MapMode.READ_ONLY, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new WebPDecoderException("Invalid file or version");
+            }
+            int canvasWidth = buffer.getInt();
+            int canvasHeight = buffer.getInt();
+            int loopCount = buffer.getInt();
+            Color bgColor = new Color(buffer.getInt(), true);
+            int frameCount = buffer.getInt();
+            int duration = buffer.getInt();
+            boolean complete = buffer.getInt() == 1;
+            int storedFrames = buffer.getInt();
+            List<WebPImageFrame> frames = new ArrayList<>();
+            for (int i = 0; i < storedFrames; i++) {
+                frames.add(readFrame(buffer));
+            }
+            return new WebPImage(frames, canvasWidth, canvasHeight, loopCount,
+                    bgColor, frameCount, duration, complete);
+        }
+        catch (BufferUnderflowException | IllegalArgumentException ex) {
+            throw new WebPDecoderException("Invalid file: " + ex);
+        }
+    }
+
+    private static WebPImageFrame readFrame(MappedFile buffer) throws IOException {
+        int timestamp = buffer.getInt();
+        int delay = buffer.getInt();
+        int imageCount = buffer.getInt();
+        if (imageCount < 0 || imageCount > buffer.remaining()) {
+            throw new WebPDecoderException("Invalid image count");
+        }
+        if (imageCount == 0) {
+            return new WebPImageFrame((BufferedImage) null, timestamp, delay);
+        }
+        List<BufferedImage> images = new ArrayList<>();
+        for (int i = 0; i < imageCount; i++) {
+            images.add(readImage(buffer));
+        }
+        return new WebPImageFrame(images, timestamp, delay);
+    }
+
+    private static BufferedImage readImage(MappedFile buffer) throws IOException {
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        int type = buffer.getInt();
+        if (type != TYPE_RGBA && type != TYPE_INDEXED) {
+            throw new WebPDecoderException("Invalid image type");
+        }
+        long pixelCount = (long) width * height;
+        // Check before allocating, so a bad header can't allocate more than
+        // the file contains
+        long pixelBytes = type == TYPE_RGBA ? pixelCount * 4 : pixelCount;
+        if (width < 0 || height < 0 || pixelBytes > buffer.remaining()
+                || pixelCount > Integer.MAX_VALUE - 8) {
+            throw new WebPDecoderException("Invalid frame size");
+        }
+        BufferedImage image;
+        switch (type) {
+            case TYPE_RGBA:
+                int[] pixels = new int[(int) pixelCount];
+                buffer.get(pixels);
+                image = WebPDecoder.createImage(pixels, width, height);
+                break;
+            case TYPE_INDEXED:
+                int paletteSize = buffer.getInt();
+                if (paletteSize < 0 || paletteSize > ColorPalette.MAX_COLORS) {
+                    throw new WebPDecoderException("Invalid palette size");
+                }
+                int[] palette = new int[paletteSize];
+                buffer.get(palette);
+                byte[] indices = new byte[(int) pixelCount];
+                buffer.get(indices);
+                buffer.skip(padding(indices.length));
+                IndexColorModel colorModel = ColorPalette.createColorModel(palette, paletteSize);
+                image = WebPDecoder.createIndexedImage(indices, colorModel, width, height);
+                break;
+            default:
+                throw new WebPDecoderException("Invalid image type");
+        }
+        return image;
+    }
+
+    private static int padding(int length) {
+        return (4 - length % 4) % 4;
+    }
+
+    /**
+     * A frame with the images in the format they will be stored in.
+     */
+    private static class FrameData {
+
+        private final WebPImageFrame frame;
+        private final List<ImageData> images = new ArrayList<>();
+
+        FrameData(WebPImageFrame frame) {
+            this.frame = frame;
+            for (BufferedImage img : frame.resolutions) {
+                images.add(ImageData.of(img));
+            }
+        }
+
+        public long size() {
+            long result = FRAME_HEADER_SIZE;
+            for (ImageData image : images) {
+                result += image.size();
+            }
+            return result;
+        }
+
+        public void write(MappedFile buffer) throws IOException {
+            buffer.putInt(frame.timestamp);
+            buffer.putInt(frame.delay);
+            buffer.putInt(images.size());
+            for (ImageData image : images) {
+                image.write(buffer);
+            }
+        }
+
+    }
+
+    /**
+     * The pixel data of an image, in the format it will be stored in.
+     */
+    private static class ImageData {
+
+        private final int type;
+        private final int width;
+        private final int height;
+        private final int[] pixels;
+        private final int[] palette;
+        private final byte[] indices;
+
+        private ImageData(int type, int width, int height,
+                          int[] pixels, int[] palette, byte[] indices) {
+            this.type = type;
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+            this.palette = palette;
+            this.indices = indices;
+        }
+
+        public static ImageData of(BufferedImage img) {
+            int width = img.getWidth();
+            int height = img.getHeight();
+            WritableRaster raster = img.getRaster();
+            DataBuffer db = raster.getDataBuffer();
+            boolean fullRaster = raster.getSampleModelTranslateX() == 0
+                    && raster.getSampleModelTranslateY() == 0
+                    && db.getSize() == width * height;
+            // Images created by the decoder can be used directly
+            if (fullRaster && db instanceof DataBufferInt
+                    && img.getColorModel() instanceof DirectColorModel
+                    && ((DirectColorModel) img.getColorModel()).getRedMask() == 0x000000ff) {
+                int[] pixels = ((DataBufferInt) db).getData();
+                return new ImageData(TYPE_RGBA, width, height, pixels, null, null);
+            }
+            if (fullRaster && db instanceof DataBufferByte
+                    && img.getColorModel() instanceof IndexColorModel
+                    && img.getColorModel().getPixelSize() == 8) {
+                IndexColorModel colorModel = (IndexColorModel) img.getColorModel();
+                int[] palette = new int[colorModel.getMapSize()];
+                colorModel.getRGBs(palette);
+                for (int i = 0; i < palette.length; i++) {
+                    palette[i] = fromARGB(palette[i]);
+                }
+                byte[] indices = ((DataBufferByte) db).getData();
+                return new ImageData(TYPE_INDEXED, width, height, null, palette, indices);
+            }
+            // Other images, should only happen if they have been replaced
+            int[] pixels = img.getRGB(0, 0, width, height, null, 0, width);
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = fromARGB(pixels[i]);
+            }
+            return new ImageData(TYPE_RGBA, width, height, pixels, null, null);
+        }
+
+        /**
+         * Convert from 0xAARRGGBB to the native decoder format 0xAABBGGRR.
+         */
+        private static int fromARGB(int argb) {
+            return (argb & 0xFF00FF00) | ((argb >> 16) & 0xFF) | ((argb & 0xFF) << 16);
+        }
+
+        public long size() {
+            long result = IMAGE_HEADER_SIZE;
+            if (type == TYPE_RGBA) {
+                result += (long) pixels.length * 4;
+            }
+            else {
+                result += 4 + palette.length * 4 + indices.length + padding(indices.length);
+            }
+            return result;
+        }
+
+        public void write(MappedFile buffer) throws IOException {
+            buffer.putInt(width);
+            buffer.putInt(height);
+            buffer.putInt(type);
+            if (type == TYPE_RGBA) {
+                buffer.put(pixels);
+            }
+            else {
+                buffer.putInt(palette.length);
+                buffer.put(palette);
+                buffer.put(indices);
+                buffer.skip(padding(indices.length));
+            }
+        }
+
+    }
+
+    /**
+     * Reads or writes a file sequentially through mapped windows, which are
+     * mapped as needed.
+     */
+    private static class MappedFile {
+
+        private final FileChannel channel;
+        private final FileChannel.MapMode mode;
+        private final long size;
+
+        private MappedByteBuffer buffer;
+        private long bufferStart;
+
+        MappedFile(FileChannel channel, FileChannel.MapMode mode, long size) {
+            this.channel = channel;
+            this.mode = mode;
+            this.size = size;
+        }
+
+        /**
+         * The number of bytes left in the file.
+         */
+        public long remaining() {
+            return size - position();
+        }
+
+        private long position() {
+            return bufferStart + (buffer != null ? buffer.position() : 0);
+        }
+
+        /**
+         * Map the next window if the current one has less than the given
+         * number of bytes left.
+         *
+         * @throws BufferUnderflowException If the file has less bytes left
+         */
+        private void ensure(int bytes) throws IOException {
+            if (buffer != null && buffer.remaining() >= bytes) {
+                return;
+            }
+            long position = position();
+            if (size - position < bytes) {
+                throw new BufferUnderflowException();
+            }
+            force();
+            buffer = channel.map(mode, position, Math.min(WINDOW_SIZE, size - position));
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            bufferStart = position;
+        }
+
+        public int getInt() throws IOException {
+            ensure(4);
+            return buffer.getInt();
+        }
+
+        public void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        public void get(int[] values) throws IOException {
+            int offset = 0;
+            while (offset < values.length) {
+                ensure(4);
+                int length = Math.min(values.length - offset, buffer.remaining() / 4);
+                buffer.asIntBuffer().get(values, offset, length);
+                buffer.position(buffer.position() + length * 4);
+                offset += length;
+            }
+        }
+
+        public void put(int[] values) throws IOException {
+            int offset = 0;
+            while (offset < values.length) {
+                ensure(4);
+                int length = Math.min(values.length - offset, buffer.remaining() / 4);
+                buffer.asIntBuffer().put(values, offset, length);
+                buffer.position(buffer.position() + length * 4);
+                offset += length;
+            }
+        }
+
+        public void get(byte[] values) throws IOException {
+            int offset = 0;
+            while (offset < values.length) {
+                ensure(1);
+                int length = Math.min(values.length - offset, buffer.remaining());
+                buffer.get(values, offset, length);
+                offset += length;
+            }
+        }
+
+        public void put(byte[] values) throws IOException {
+            int offset = 0;
+            while (offset < values.length) {
+                ensure(1);
+                int length = Math.min(values.length - offset, buffer.remaining());
+                buffer.put(values, offset, length);
+                offset += length;
+            }
+        }
+
+        public void skip(int bytes) throws IOException {
+            while (bytes > 0) {
+                ensure(1);
+                int length = Math.min(bytes, buffer.remaining());
+                buffer.position(buffer.position() + length);
+                bytes -= length;
+            }
+        }
+
+        /**
+         * Write changes of the current window to the file.
+         */
+        public void force() {
+            if (buffer != null && mode == FileChannel.MapMode.READ_WRITE) {
+                buffer.force();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,83 @@
+package webpdecoderjn;
+
+/**
+ * Scales decoded pixels using a box filter, where each target pixel is the
+ * average of the source pixels it covers. This is fast and gives good results
+ * for reducing the size (e.g. for smaller zoom levels). When enlarging, each
+ * target pixel covers less than one source pixel, so the nearest source pixel
+ * is used.
+ *
+ * <p>
+ * Pixels are in the format returned by the native decoder in RGBA mode (RGBA
+ * bytes read as a little-endian int, so {@code 0xAABBGGRR}), non-premultiplied.
+ * The colors are weighted by alpha, so fully transparent pixels don't darken
+ * the edges.
+ *
+ * @author tduva
+ */
+class ImageScaler {
+
+    /**
+     * Scale the pixels to the given size.
+     *
+     * @param src The source pixels
+     * @param width The source width
+     * @param height The source height
+     * @param targetWidth The target width
+     * @param targetHeight The target height
+     * @return A new array with the scaled pixels (or the source array if the
+     * size is the same)
+     */
+    public static int[] scale(int[] src, int width, int height, int targetWidth, int targetHeight) {
+        if (width == targetWidth && height == targetHeight) {
+            return src;
+        }
+        int[] result = new int[targetWidth * targetHeight];
+        // Source column range for each target column, same for all rows
+        int[] x0 = new int[targetWidth];
+        int[] x1 = new int[targetWidth];
+        for (int x = 0; x < targetWidth; x++) {
+            x0[x] = (int) ((long) x * width / targetWidth);
+            x1[x] = Math.max(x0[x] + 1, (int) ((long) (x + 1) * width / targetWidth));
+        }
+        for (int y = 0; y < targetHeight; y++) {
+            int y0 = (int) ((long) y * height / targetHeight);
+            int y1 = Math.max(y0 + 1, (int) ((long) (y + 1) * height / targetHeight));
+            for (int x = 0; x < targetWidth; x++) {
+                result[y * targetWidth + x] = average(src, width, x0[x], x1[x], y0, y1);
+            }
+        }
+        return result;
+    }
+
+    private static int average(int[] src, int width, int x0, int x1, int y0, int y1) {
+        if (x1 - x0 == 1 && y1 - y0 == 1) {
+            return src[y0 * width + x0];
+        }
+        long a = 0;
+        long r = 0;
+        long g = 0;
+        long b = 0;
+        for (int y = y0; y < y1; y++) {
+            int offset = y * width;
+            for (int x = x0; x < x1; x++) {
+                int pixel = src[offset + x];
+                int alpha = pixel >>> 24;
+                a += alpha;
+                r += (pixel & 0xFF) * alpha;
+                g += ((pixel >>> 8) & 0xFF) * alpha;
+                b += ((pixel >>> 16) & 0xFF) * alpha;
+            }
+        }
+        if (a == 0) {
+            return 0;
+        }
+        int count = (x1 - x0) * (y1 - y0);
+        int resultA = (int) ((a + count / 2) / count);
+        int resultR = (int) ((r + a / 2) / a);
+        int resultG = (int) ((g + a / 2) / a);
+        int resultB = (int) ((b + a / 2) / a);
+        return resultR | (resultG << 8) | (resultB << 16) | (resultA << 24);
+    }
+
+}
@@ -4,31 +4,48 @@ package webpdecoderjn;
 import com.sun.jna.IntegerType;
 import com.sun.jna.Library;
 import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
 import com.sun.jna.Platform;
 import com.sun.jna.Pointer;
 import com.sun.jna.Structure;
+import com.sun.jna.Union;
 import com.sun.jna.ptr.IntByReference;
 import com.sun.jna.ptr.PointerByReference;
 import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Image;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
 import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
 import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Proxy;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Logger;
 
 /**
@@ -106,15 +123,65 @@ public class WebPDecoder {
     }
     
     private static LibWebP libWebPInstance;
+    private static boolean frameDecodingSupported;
+    
+    /**
+     * The functions for decoding individual frames, which older builds of the
+     * native library don't export.
+     */
+    private static final String[] FRAME_DECODING_FUNCTIONS = {
+        "WebPDemuxInternal", "WebPDemuxDelete", "WebPDemuxGetFrame",
+        "WebPDemuxNextFrame", "WebPDemuxReleaseIterator", "WebPDemuxGetI",
+        "WebPInitDecoderConfigInternal", "WebPDecode", "WebPFreeDecBuffer",
+        "WebPGetFeaturesInternal"
+    };
     
     private static synchronized LibWebP lib() {
         if (libWebPInstance == null) {
             libWebPInstance = Native.load(libPath != null ? libPath.toString() : LIB_NAME, LibWebP.class);
+            frameDecodingSupported = hasFunctions(libWebPInstance, FRAME_DECODING_FUNCTIONS);
             removeLibrary(libPath);
         }
         return libWebPInstance;
     }
     
+    private static boolean hasFunctions(Library library, String[] names) {
+        NativeLibrary nativeLibrary = ((Library.Handler) Proxy.getInvocationHandler(library)).getNativeLibrary();
+        for (String name : names) {
+            try {
+                nativeLibrary.getFunction(name);
+            }
+            catch (UnsatisfiedLinkError ex) {
+                LOGGER.warning("Native library doesn't export " + name
+                        + ", frame decoding options will be ignored");
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Whether the loaded native library supports decoding individual frames,
+     * which is used by the executor, quality and sizes options as well as
+     * {@link #decodeTiles(byte[], int, int, DecodeOptions, TileConsumer)} and
+     * {@link #decodeYUV(byte[], DecodeOptions)}.
+     * 
+     * <p>
+     * Older builds of the native library (like the currently included Windows
+     * libraries) only support the animation decoder. With those the executor
+     * and quality options are ignored, sizes are scaled from the full size
+     * frames and tiled and YUV decoding throw an
+     * {@code UnsatisfiedLinkError}.
+     * 
+     * @return {@code true} if individual frames can be decoded
+     * @throws UnsatisfiedLinkError When there was an issue loading the native
+     * libraries (note that this is an error, not an exception)
+     */
+    public static synchronized boolean isFrameDecodingSupported() throws UnsatisfiedLinkError {
+        lib();
+        return frameDecodingSupported;
+    }
+    
     private static Path findNextToJar() {
         Path jarPath = getJarPath();
         if (jarPath == null) {
@@ -160,6 +227,15 @@ public class WebPDecoder {
         return Native.extractFromResourcePath(name).toPath();
     }
     
+    /**
+     * The path of the native library resource (as extracted by JNA).
+     * 
+     * @return The resource name, e.g. "linux-x86-64/liblibwebp_animdecoder.so"
+     */
+    static String getLibResourceName() {
+        return Platform.RESOURCE_PREFIX + "/" + System.mapLibraryName(LIB_NAME);
+    }
+    
     /**
      * This will have to be changed if JNA changes the prefix.
      */
@@ -271,30 +347,108 @@ public class WebPDecoder {
      */
     public static WebPImage decode(byte[] rawData) throws WebPDecoderException,
                                                           UnsatisfiedLinkError {
-        List<WebPImageFrame> frames = new ArrayList<>();
+        return decode(rawData, null);
+    }
+    
+    /**
+     * Decode a WebP image.
+     * 
+     * @param rawData The raw bytes of the image
+     * @param options Options affecting the decoding and the output, may be
+     * {@code null} to use the defaults
+     * @return A decoded {@link WebPImage}
+     * @throws WebPDecoderException When the decoder encounters an issue (e.g.
+     * if it's not a valid WebP file)
+     * @throws UnsatisfiedLinkError When there was an issue loading the native
+     * libraries (note that this is an error, not an exception)
+     */
+    public static WebPImage decode(byte[] rawData, DecodeOptions options)
+                                                throws WebPDecoderException,
+                                                       UnsatisfiedLinkError {
+        if (options == null) {
+            options = new DecodeOptions();
+        }
+        FrameCollector frames = options.sizes != null
+                ? new MultiSizeFrames(options.sizes)
+                : new FrameCollector(options.indexedColor);
+        return decode(rawData, options, frames);
+    }
+    
+    private static WebPImage decode(byte[] rawData, DecodeOptions options, FrameCollector frames)
+                                                throws WebPDecoderException {
         Pointer bytes = null;
-        Pointer decoder = null;
-        LibWebP.WebPAnimInfo info;
         try {
-            bytes = lib().WebPMalloc(rawData.length);
+            bytes = malloc(rawData.length);
             bytes.write(0, rawData, 0, rawData.length);
             
             LibWebP.WebPData data = new LibWebP.WebPData();
             data.bytes = bytes;
             data.length = new LibWebP.Size_T(rawData.length);
             
-            decoder = lib().WebPAnimDecoderNewInternal(data, null, LibWebP.WEBP_DEMUX_ABI_VERSION);
+            // The animation decoder doesn't support the decoder options
+            if ((options.executor != null || options.quality != DecodeQuality.DEFAULT
+                    || frames.getDecodeSize() != null) && isFrameDecodingSupported()) {
+                LibWebP.WebPBitstreamFeatures features = new LibWebP.WebPBitstreamFeatures();
+                if (lib().WebPGetFeaturesInternal(bytes, data.length, features,
+                        LibWebP.WEBP_DECODER_ABI_VERSION) == LibWebP.VP8_STATUS_OK
+                        && features.has_animation == 0) {
+                    return decodeStill(data, features, options, frames);
+                }
+                // Composing the frames in Java is slower than the animation
+                // decoder, which outweighs the gain of FAST for animations,
+                // and sizes are scaled from the composed frames either way
+                if (options.executor != null || options.quality == DecodeQuality.HIGH) {
+                    return decodeFragments(data, options, frames);
+                }
+            }
+            return decodeAnimation(data, options, frames);
+        }
+        finally {
+            if (bytes != null) {
+                free(bytes);
+            }
+        }
+    }
+    
+    /**
+     * Decode using the libwebp animation decoder, which decodes and composes
+     * one frame after another.
+     */
+    private static WebPImage decodeAnimation(LibWebP.WebPData data, DecodeOptions options,
+                                             FrameCollector frames)
+                                                throws WebPDecoderException {
+        Pointer decoder = null;
+        try {
+            decoder = newAnimDecoder(data);
             if (decoder == null) {
                 throw new WebPDecoderException("Failed creating decoder, invalid image?");
             }
 
-            info = new LibWebP.WebPAnimInfo();
+            LibWebP.WebPAnimInfo info = new LibWebP.WebPAnimInfo();
             if (lib().WebPAnimDecoderGetInfo(decoder, info) == 0) {
                 throw new WebPDecoderException("Failed getting decoder info");
             }
             
+            Cancellation cancellation = new Cancellation(options);
+            boolean complete = true;
             int prevTimestamp = 0;
+            int decodedFrames = 0;
+            checkFrameIndex(options, info.frame_count);
             while (lib().WebPAnimDecoderHasMoreFrames(decoder) == 1) {
+                if (options.frameIndex == -1
+                        && options.maxFrames > 0
+                        && decodedFrames >= options.maxFrames) {
+                    break;
+                }
+                if (cancellation.isCancelled()) {
+                    if (!options.partialResult) {
+                        throw new WebPDecoderCancelledException(String.format(
+                                "Decoding cancelled after %d of %d frames",
+                                decodedFrames, info.frame_count));
+                    }
+                    complete = false;
+                    break;
+                }
                 PointerByReference buf = new PointerByReference();
                 IntByReference timestamp = new IntByReference();
                 
@@ -305,179 +459,2102 @@ public class WebPDecoder {
                 int delay = timestamp.getValue() - prevTimestamp;
                 prevTimestamp = timestamp.getValue();
                 
-                BufferedImage image = createImage(buf.getValue(), info.canvas_width, info.canvas_height);
-                frames.add(new WebPImageFrame(image, timestamp.getValue(), delay));
+                if (options.frameIndex != -1 && decodedFrames < options.frameIndex) {
+                    // Previous frames are still needed to compose the canvas
+                    decodedFrames++;
+                    continue;
+                }
+                frames.add(buf.getValue(), info.canvas_width, info.canvas_height, timestamp.getValue(), delay);
+                decodedFrames++;
+                if (decodedFrames == options.frameIndex + 1) {
+                    break;
+                }
             }
+            int duration;
+            if (decodedFrames < info.frame_count) {
+                duration = getTotalDuration(data);
+            }
+            else {
+                duration = prevTimestamp;
+            }
+            return new WebPImage(frames.createFrames(), info.canvas_width, info.canvas_height,
+                    info.loop_count, Color.BLACK, info.frame_count, duration, complete);
         }
         finally {
             if (decoder != null) {
-                lib().WebPAnimDecoderDelete(decoder);
+                deleteAnimDecoder(decoder);
             }
-            if (bytes != null) {
-                lib().WebPFree(bytes);
+        }
+    }
+    
+    /**
+     * Decode the individual frames (fragments), in parallel if an executor is
+     * set, then compose them onto the canvas in order.
+     */
+    private static WebPImage decodeFragments(LibWebP.WebPData data, DecodeOptions options,
+                                             FrameCollector frames)
+                                                throws WebPDecoderException {
+        Pointer demuxer = newDemuxer(data);
+        if (demuxer == null) {
+            throw new WebPDecoderException("Failed creating demuxer, invalid image?");
+        }
+        List<FragmentTask> tasks = new ArrayList<>();
+        try {
+            int canvasWidth = lib().WebPDemuxGetI(demuxer, LibWebP.WEBP_FF_CANVAS_WIDTH);
+            int canvasHeight = lib().WebPDemuxGetI(demuxer, LibWebP.WEBP_FF_CANVAS_HEIGHT);
+            int loopCount = lib().WebPDemuxGetI(demuxer, LibWebP.WEBP_FF_LOOP_COUNT);
+            List<AnimationCompositor.Frame> allFrames = getFrames(demuxer);
+            if (allFrames.isEmpty()) {
+                throw new WebPDecoderException("No frames found, invalid image?");
+            }
+            checkFrameIndex(options, allFrames.size());
+            boolean[] keyFrames = AnimationCompositor.findKeyFrames(allFrames, canvasWidth, canvasHeight);
+            
+            int first = 0;
+            int last = allFrames.size() - 1;
+            if (options.frameIndex != -1) {
+                // Only the frames since the last key frame are required
+                last = options.frameIndex;
+                first = last;
+                while (!keyFrames[first]) {
+                    first--;
+                }
+            }
+            else if (options.maxFrames > 0) {
+                last = Math.min(last, options.maxFrames - 1);
+            }
+            int timestamp = 0;
+            int duration = 0;
+            for (AnimationCompositor.Frame frame : allFrames) {
+                if (frame.index < first) {
+                    timestamp += frame.duration;
+                }
+                duration += frame.duration;
+            }
+            
+            Cancellation cancellation = new Cancellation(options);
+            AnimationCompositor compositor = new AnimationCompositor(canvasWidth, canvasHeight);
+            boolean complete = true;
+            // Limit how many frames are decoded ahead, to limit memory usage
+            int window = Runtime.getRuntime().availableProcessors() * 2;
+            int submitted = first;
+            for (int i = first; i <= last; i++) {
+                while (submitted <= last && submitted < i + window) {
+                    FragmentTask task = new FragmentTask(allFrames.get(submitted), options.quality);
+                    tasks.add(task);
+                    if (options.executor == null) {
+                        task.run();
+                    }
+                    else {
+                        try {
+                            options.executor.execute(task);
+                        }
+                        catch (RejectedExecutionException ex) {
+                            task.run();
+                        }
+                    }
+                    submitted++;
+                }
+                if (cancellation.isCancelled()) {
+                    if (!options.partialResult) {
+                        throw new WebPDecoderCancelledException(String.format(
+                                "Decoding cancelled after %d of %d frames",
+                                i - first, allFrames.size()));
+                    }
+                    complete = false;
+                    break;
+                }
+                AnimationCompositor.Frame frame = allFrames.get(i);
+                int[] canvas = compositor.compose(frame, keyFrames[i], tasks.get(i - first).get());
+                timestamp += frame.duration;
+                if (options.frameIndex == -1 || i == options.frameIndex) {
+                    frames.add(canvas, canvasWidth, canvasHeight, timestamp, frame.duration);
+                }
+            }
+            return new WebPImage(frames.createFrames(), canvasWidth, canvasHeight,
+                    loopCount, Color.BLACK, allFrames.size(), duration, complete);
+        }
+        finally {
+            // The fragments point into the input data, so wait for running
+            // decodes to finish before it is freed
+            for (FragmentTask task : tasks) {
+                task.cancelAndWait();
             }
+            deleteDemuxer(demuxer);
         }
-        return new WebPImage(frames, info.canvas_width, info.canvas_height,
-                info.loop_count, Color.BLACK, info.frame_count);
     }
     
-    private static BufferedImage createImage(Pointer pixelData, int width, int height) {
-        if (pixelData != null) {
-            int[] pixels = pixelData.getIntArray(0, width * height);
-
-            ColorModel colorModel = new DirectColorModel(32, 0x000000ff, 0x0000ff00, 0x00ff0000, 0xff000000);
-
-            SampleModel sampleModel = colorModel.createCompatibleSampleModel(width, height);
-            DataBufferInt db = new DataBufferInt(pixels, width * height);
-            WritableRaster raster = WritableRaster.createWritableRaster(sampleModel, db, null);
-
-            return new BufferedImage(colorModel, raster, false, new Hashtable<Object, Object>());
+    /**
+     * Decode a still image with a single native decode, without the demuxer
+     * and the canvas the animation decoder copies the frame into. The image
+     * is scaled natively while decoding if sizes are set.
+     */
+    private static WebPImage decodeStill(LibWebP.WebPData data, LibWebP.WebPBitstreamFeatures features,
+                                         DecodeOptions options, FrameCollector frames)
+                                                throws WebPDecoderException {
+        checkFrameIndex(options, 1);
+        int width = features.width;
+        int height = features.height;
+        boolean complete = true;
+        if (new Cancellation(options).isCancelled()) {
+            if (!options.partialResult) {
+                throw new WebPDecoderCancelledException("Decoding cancelled after 0 of 1 frames");
+            }
+            complete = false;
         }
-        return null;
+        else {
+            AnimationCompositor.Frame frame = new AnimationCompositor.Frame(0, 0, 0, width, height, 0,
+                    AnimationCompositor.Frame.DISPOSE_NONE, AnimationCompositor.Frame.NO_BLEND,
+                    features.has_alpha != 0, data.bytes, data.length.longValue());
+            Dimension decodeSize = frames.getDecodeSize();
+            int[] pixels = decodeFragment(frame, options.quality, decodeSize);
+            if (decodeSize != null) {
+                frames.add(pixels, decodeSize.width, decodeSize.height, 0, 0);
+            }
+            else {
+                frames.add(pixels, width, height, 0, 0);
+            }
+        }
+        // Same values the animation decoder reports for still images
+        return new WebPImage(frames.createFrames(), width, height,
+                1, Color.BLACK, 1, 0, complete);
     }
     
-    public static class WebPDecoderException extends IOException {
-
-        private static final long serialVersionUID = 1L;
-
-        public WebPDecoderException(String message) {
-            super(message);
+    private static void checkFrameIndex(DecodeOptions options, int frameCount) throws WebPDecoderException {
+        if (options.frameIndex >= frameCount) {
+            throw new WebPDecoderException(String.format(
+                    "Frame index %d out of range (%d frames)",
+                    options.frameIndex, frameCount));
         }
-
     }
     
-    //==========================
-    // Decoded Image Classes
-    //==========================
     /**
-     * A decoded image containing the individual frames (for static images just
-     * one) and some meta info.
+     * Decode a single frame (fragment) of an animation, or the only frame of a
+     * still image, into RGBA pixels.
+     * 
+     * @param frame The frame
+     * @param quality The decode quality
+     * @param scaledSize The size to scale the frame to while decoding, or
+     * {@code null} to keep the size of the frame
+     * @return The pixels, with the size of the frame (or the scaled size)
+     * @throws WebPDecoderException If decoding fails
      */
-    public static class WebPImage {
-        
-        public final List<WebPImageFrame> frames;
-        public final int canvasWidth;
-        public final int canvasHeight;
-        public final int loopCount;
-        public final Color bgColor;
-        public final int frameCount;
-        
-        private WebPImage(List<WebPImageFrame> frames, int canvasWidth, int canvasHeight,
-                          int loopCount, Color bgColor, int frameCount) {
-            this.frames = frames;
-            this.canvasWidth = canvasWidth;
-            this.canvasHeight = canvasHeight;
-            this.frameCount = frameCount;
-            this.loopCount = loopCount;
-            this.bgColor = bgColor;
+    private static int[] decodeFragment(AnimationCompositor.Frame frame, DecodeQuality quality,
+                                        Dimension scaledSize)
+                                                throws WebPDecoderException {
+        LibWebP.WebPDecoderConfig config = fragmentConfig();
+        // Resets the config natively, only the changed fields are written
+        if (lib().WebPInitDecoderConfigInternal(config, LibWebP.WEBP_DECODER_ABI_VERSION) == 0) {
+            throw new WebPDecoderException("Failed initializing decoder config");
         }
-        
-        @Override
-        public String toString() {
-            return String.format("%d x %d / %d loops / %d frames %s",
-                    canvasWidth, canvasHeight, loopCount, frameCount, frames);
+        LibWebP.WebPDecoderOptions options = config.options;
+        applyQuality(options, quality);
+        int expectedWidth = frame.width;
+        int expectedHeight = frame.height;
+        boolean scale = scaledSize != null
+                && (scaledSize.width != frame.width || scaledSize.height != frame.height);
+        // Not scaling at the same size, since that is done differently
+        options.use_scaling = scale ? 1 : 0;
+        options.scaled_width = scale ? scaledSize.width : 0;
+        options.scaled_height = scale ? scaledSize.height : 0;
+        if (scale) {
+            expectedWidth = scaledSize.width;
+            expectedHeight = scaledSize.height;
+        }
+        for (String field : OPTION_FIELDS) {
+            options.writeField(field);
+        }
+        config.output.colorspace = LibWebP.MODE_RGBA;
+        config.output.writeField("colorspace");
+        int status = lib().WebPDecode(frame.data, new LibWebP.Size_T(frame.size), config);
+        if (status != LibWebP.VP8_STATUS_OK) {
+            throw new WebPDecoderException(String.format(
+                    "Error decoding frame %d (status %d)", frame.index, status));
+        }
+        openBuffers.incrementAndGet();
+        try {
+            LibWebP.WebPRGBABuffer rgba = config.output.u.RGBA;
+            config.output.readField("width");
+            config.output.readField("height");
+            rgba.readField("rgba");
+            rgba.readField("stride");
+            int width = config.output.width;
+            int height = config.output.height;
+            if (width != expectedWidth || height != expectedHeight) {
+                throw new WebPDecoderException(String.format(
+                        "Unexpected size of frame %d", frame.index));
+            }
+            if (rgba.stride == width * 4) {
+                return rgba.rgba.getIntArray(0, width * height);
+            }
+            int[] result = new int[width * height];
+            for (int y = 0; y < height; y++) {
+                rgba.rgba.read((long) y * rgba.stride, result, y * width, width);
+            }
+            return result;
+        }
+        finally {
+            lib().WebPFreeDecBuffer(config.output);
+            openBuffers.decrementAndGet();
         }
-        
     }
     
     /**
-     * A single frame of a decoded image.
+     * Create a decoder config with the default values and the options of the
+     * given quality applied.
      */
-    public static class WebPImageFrame {
-        
-        /**
-         * The image.
-         */
-        public final BufferedImage img;
+    private static LibWebP.WebPDecoderConfig initDecoderConfig(DecodeQuality quality)
+                                                throws WebPDecoderException {
+        LibWebP.WebPDecoderConfig config = new LibWebP.WebPDecoderConfig();
+        if (lib().WebPInitDecoderConfigInternal(config, LibWebP.WEBP_DECODER_ABI_VERSION) == 0) {
+            throw new WebPDecoderException("Failed initializing decoder config");
+        }
+        applyQuality(config.options, quality);
+        return config;
+    }
+    
+    private static void applyQuality(LibWebP.WebPDecoderOptions options, DecodeQuality quality) {
+        options.bypass_filtering = quality == DecodeQuality.FAST ? 1 : 0;
+        options.no_fancy_upsampling = quality == DecodeQuality.FAST ? 1 : 0;
+        // Same values as dwebp's -dither and -alpha_dither
+        options.dithering_strength = quality == DecodeQuality.HIGH ? 50 : 0;
+        options.alpha_dithering_strength = quality == DecodeQuality.HIGH ? 100 : 0;
+    }
+    
+    /**
+     * The options set by {@link #decodeFragment(AnimationCompositor.Frame,
+     * DecodeQuality, Dimension)}.
+     */
+    private static final String[] OPTION_FIELDS = {
+        "bypass_filtering", "no_fancy_upsampling", "dithering_strength",
+        "alpha_dithering_strength", "use_scaling", "scaled_width", "scaled_height"
+    };
+    
+    private static final ThreadLocal<LibWebP.WebPDecoderConfig> FRAGMENT_CONFIG = new ThreadLocal<>();
+    
+    /**
+     * The decoder config for decoding frames, reused by each thread. For
+     * small images creating the JNA structure and synchronizing all its
+     * fields on every call takes longer than the actual decoding, so only the
+     * fields that are used are written and read.
+     */
+    private static LibWebP.WebPDecoderConfig fragmentConfig() {
+        LibWebP.WebPDecoderConfig config = FRAGMENT_CONFIG.get();
+        if (config == null) {
+            config = new LibWebP.WebPDecoderConfig();
+            config.output.u.setType(LibWebP.WebPRGBABuffer.class);
+            // Makes the nested structures use the memory of the config
+            config.write();
+            config.setAutoSynch(false);
+            config.output.setAutoSynch(false);
+            FRAGMENT_CONFIG.set(config);
+        }
+        return config;
+    }
+    
+    /**
+     * Decodes a frame, possibly on another thread. Can be cancelled, as long
+     * as it hasn't been started yet. If it hasn't been started when the result
+     * is needed, it is run on the calling thread instead of waiting for the
+     * executor.
+     */
+    private static class FragmentTask implements Runnable {
         
-        /**
-         * Counted from the start of the animation until when to show the frame
-         * (in ms).
-         */
-        public final int timestamp;
+        private final AnimationCompositor.Frame frame;
+        private final DecodeQuality quality;
         
-        /**
-         * How long to show the frame (in ms).
-         */
-        public final int delay;
+        private boolean cancelled;
+        private boolean started;
+        private boolean done;
+        private int[] pixels;
+        private Throwable error;
         
-        private WebPImageFrame(BufferedImage img, int timestamp, int delay) {
-            this.img = img;
-            this.timestamp = timestamp;
-            this.delay = delay;
+        FragmentTask(AnimationCompositor.Frame frame, DecodeQuality quality) {
+            this.frame = frame;
+            this.quality = quality;
         }
         
         @Override
-        public String toString() {
-            return String.valueOf(delay);
+        public void run() {
+            synchronized (this) {
+                if (cancelled || started) {
+                    return;
+                }
+                started = true;
+            }
+            decode();
         }
         
-    }
-    
-    //==========================
-    // libwebp
-    //==========================
-    private interface LibWebP extends Library {
-        
-        /*
-        [webp/types.h]
-            // Allocates 'size' bytes of memory. Returns NULL upon error. Memory
-            // must be deallocated by calling WebPFree(). This function is made available
-            // by the core 'libwebp' library.
-            WEBP_EXTERN void* WebPMalloc(size_t size);
-        */
-        public Pointer WebPMalloc(int size);
-        
-        /*
-        [webp/types.h]
-            // Releases memory returned by the WebPDecode*() functions (from decode.h).
-            WEBP_EXTERN void WebPFree(void* ptr);
-        */
-        public void WebPFree(Pointer pointer);
+        private void decode() {
+            try {
+                pixels = decodeFragment(frame, quality, null);
+            }
+            catch (Throwable ex) {
+                // Passed on to the decoding thread in get()
+                error = ex;
+            }
+            finally {
+                synchronized (this) {
+                    done = true;
+                    notifyAll();
+                }
+            }
+        }
         
-        static final int WEBP_DEMUX_ABI_VERSION = 0x0107;
+        /**
+         * Decode the frame on the calling thread if it hasn't been started
+         * yet, otherwise wait for it to be decoded. This way the caller never
+         * waits for a task that is still queued, which would deadlock if the
+         * caller is itself running on the executor and all its threads are
+         * busy.
+         * 
+         * @return The pixels of the frame
+         * @throws WebPDecoderException If decoding the frame failed or the
+         * thread was interrupted while waiting
+         */
+        public int[] get() throws WebPDecoderException {
+            boolean runHere;
+            synchronized (this) {
+                runHere = !started;
+                started = true;
+            }
+            if (runHere) {
+                decode();
+            }
+            return getResult();
+        }
         
-        /*
-        [webp/demux.h]
-            // Internal, version-checked, entry point.
-            WEBP_EXTERN WebPAnimDecoder* WebPAnimDecoderNewInternal(
-                const WebPData*, const WebPAnimDecoderOptions*, int);
-
-            // Creates and initializes a WebPAnimDecoder object.
-            // Parameters:
-            //   webp_data - (in) WebP bitstream. This should remain unchanged during the
-            //                    lifetime of the output WebPAnimDecoder object.
-            //   dec_options - (in) decoding options. Can be passed NULL to choose
-            //                      reasonable defaults (in particular, color mode MODE_RGBA
-            //                      will be picked).
-            // Returns:
-            //   A pointer to the newly created WebPAnimDecoder object, or NULL in case of
-            //   parsing error, invalid option or memory error.
-            static WEBP_INLINE WebPAnimDecoder* WebPAnimDecoderNew(
-                const WebPData* webp_data, const WebPAnimDecoderOptions* dec_options) {
-              return WebPAnimDecoderNewInternal(webp_data, dec_options,
-                                                WEBP_DEMUX_ABI_VERSION);
+        private synchronized int[] getResult() throws WebPDecoderException {
+            while (!done) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new WebPDecoderCancelledException("Interrupted while waiting for frame");
+                }
             }
-        */
-        public Pointer WebPAnimDecoderNewInternal(WebPData webp_data, Structure dec_options, int version);
+            if (error instanceof WebPDecoderException) {
+                throw (WebPDecoderException) error;
+            }
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            if (error instanceof Error) {
+                throw (Error) error;
+            }
+            return pixels;
+        }
         
-        /*
-        [webp/mux_types.h]
-            // Data type used to describe 'raw' data, e.g., chunk data
-            // (ICC profile, metadata) and WebP compressed image data.
-            // 'bytes' memory must be allocated using WebPMalloc() and such.
-            struct WebPData {
-              const uint8_t* bytes;
-              size_t size;
-            };
-        */
-        @Structure.FieldOrder({ "bytes", "length" })
-        public static class WebPData extends Structure {
-            public Pointer bytes;
-            public Size_T length;
+        /**
+         * Prevent the task from starting, or if it has already started wait
+         * for it to finish.
+         */
+        public synchronized void cancelAndWait() {
+            cancelled = true;
+            boolean interrupted = false;
+            while (started && !done) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
         
-        /*
+    }
+    
+    //--------------------------
+    // Atlas
+    //--------------------------
+    /**
+     * Decode all frames of an animation into a single image (sprite sheet),
+     * instead of a separate image for each frame.
+     * 
+     * @param rawData The raw bytes of the image
+     * @param options The options, may be {@code null}
+     * @return The atlas image and where the frames are located in it
+     * @throws WebPDecoderException When the decoder encounters an issue (e.g.
+     * if it's not a valid WebP file)
+     * @throws UnsatisfiedLinkError When there was an issue loading the native
+     * libraries (note that this is an error, not an exception)
+     * @throws IllegalArgumentException If sizes are set in the options
+     * @see #decodeAtlas(List, DecodeOptions)
+     */
+    public static WebPAtlas decodeAtlas(byte[] rawData, DecodeOptions options)
+                                                throws WebPDecoderException,
+                                                       UnsatisfiedLinkError {
+        return decodeAtlas(Collections.singletonList(rawData), options);
+    }
+    
+    /**
+     * Decode all frames of the given images into a single image (sprite
+     * sheet), instead of a separate image for each frame. This results in one
+     * large allocation instead of many small ones and allows drawing all
+     * frames from the same image.
+     * 
+     * <p>
+     * The frames are written directly into the atlas from the native buffers,
+     * ordered by image and then frame, left to right in rows. The atlas is
+     * roughly square.
+     * 
+     * <p>
+     * The options apply to each image, except for the indexed color one
+     * (ignored) and sizes (not supported, since the frames are written into
+     * the atlas in their original size).
+     * 
+     * @param images The raw bytes of each image
+     * @param options The options, may be {@code null}
+     * @return The atlas image and where the frames are located in it
+     * @throws WebPDecoderException When the decoder encounters an issue (e.g.
+     * if it's not a valid WebP file or the atlas would be too large)
+     * @throws UnsatisfiedLinkError When there was an issue loading the native
+     * libraries (note that this is an error, not an exception)
+     * @throws IllegalArgumentException If sizes are set in the options
+     */
+    public static WebPAtlas decodeAtlas(List<byte[]> images, DecodeOptions options)
+                                                throws WebPDecoderException,
+                                                       UnsatisfiedLinkError {
+        if (options == null) {
+            options = new DecodeOptions();
+        }
+        if (options.sizes != null) {
+            throw new IllegalArgumentException("Sizes are not supported for atlas");
+        }
+        //--------------------------
+        // Layout
+        //--------------------------
+        List<int[]> frameSizes = new ArrayList<>();
+        int[] frameCounts = new int[images.size()];
+        long area = 0;
+        int maxWidth = 0;
+        for (int i = 0; i < images.size(); i++) {
+            int[] info = readInfo(images.get(i));
+            int count = info[2];
+            if (options.frameIndex != -1) {
+                count = 1;
+            }
+            else if (options.maxFrames > 0) {
+                count = Math.min(count, options.maxFrames);
+            }
+            frameCounts[i] = count;
+            for (int f = 0; f < count; f++) {
+                frameSizes.add(new int[]{info[0], info[1]});
+            }
+            area += (long) info[0] * info[1] * count;
+            maxWidth = Math.max(maxWidth, info[0]);
+        }
+        int atlasWidth = Math.max(maxWidth, (int) Math.ceil(Math.sqrt(area)));
+        int[] positions = new int[frameSizes.size() * 2];
+        int x = 0;
+        int y = 0;
+        int rowHeight = 0;
+        for (int i = 0; i < frameSizes.size(); i++) {
+            int[] size = frameSizes.get(i);
+            if (x + size[0] > atlasWidth) {
+                x = 0;
+                y += rowHeight;
+                rowHeight = 0;
+            }
+            positions[i * 2] = x;
+            positions[i * 2 + 1] = y;
+            x += size[0];
+            rowHeight = Math.max(rowHeight, size[1]);
+        }
+        int atlasHeight = y + rowHeight;
+        if ((long) atlasWidth * atlasHeight > Integer.MAX_VALUE - 8) {
+            throw new WebPDecoderException(String.format(
+                    "Atlas too large (%d x %d)", atlasWidth, atlasHeight));
+        }
+        
+        //--------------------------
+        // Decode
+        //--------------------------
+        int[] pixels = new int[Math.max(atlasWidth * atlasHeight, 1)];
+        List<WebPAtlasEntry> entries = new ArrayList<>();
+        int position = 0;
+        for (int i = 0; i < images.size(); i++) {
+            AtlasFrames frames = new AtlasFrames(pixels, atlasWidth,
+                    Arrays.copyOfRange(positions, position * 2, (position + frameCounts[i]) * 2));
+            WebPImage image = decode(images.get(i), options, frames);
+            entries.add(new WebPAtlasEntry(frames.atlasFrames, image.canvasWidth, image.canvasHeight,
+                    image.loopCount, image.frameCount, image.duration, image.complete));
+            position += frameCounts[i];
+        }
+        return new WebPAtlas(createImage(pixels, Math.max(atlasWidth, 1), Math.max(atlasHeight, 1)), entries);
+    }
+    
+    /**
+     * Read the canvas size and frame count, without decoding any frames.
+     * 
+     * @param rawData The raw bytes of the image
+     * @return The width, height and number of frames
+     * @throws WebPDecoderException If the image can't be parsed
+     */
+    private static int[] readInfo(byte[] rawData) throws WebPDecoderException {
+        Pointer bytes = null;
+        Pointer decoder = null;
+        try {
+            bytes = malloc(rawData.length);
+            bytes.write(0, rawData, 0, rawData.length);
+            
+            LibWebP.WebPData data = new LibWebP.WebPData();
+            data.bytes = bytes;
+            data.length = new LibWebP.Size_T(rawData.length);
+            
+            // Not using the demuxer, so it works with all native libraries
+            decoder = newAnimDecoder(data);
+            if (decoder == null) {
+                throw new WebPDecoderException("Failed creating decoder, invalid image?");
+            }
+            LibWebP.WebPAnimInfo info = new LibWebP.WebPAnimInfo();
+            if (lib().WebPAnimDecoderGetInfo(decoder, info) == 0) {
+                throw new WebPDecoderException("Failed getting decoder info");
+            }
+            return new int[]{info.canvas_width, info.canvas_height, info.frame_count};
+        }
+        finally {
+            if (decoder != null) {
+                deleteAnimDecoder(decoder);
+            }
+            if (bytes != null) {
+                free(bytes);
+            }
+        }
+    }
+    
+    /**
+     * Writes the frames directly into the atlas at the given positions,
+     * instead of creating an image for each frame.
+     */
+    private static class AtlasFrames extends FrameCollector {
+        
+        private final int[] atlas;
+        private final int atlasWidth;
+        private final int[] positions;
+        private final List<WebPAtlasFrame> atlasFrames = new ArrayList<>();
+        
+        AtlasFrames(int[] atlas, int atlasWidth, int[] positions) {
+            super(false);
+            this.atlas = atlas;
+            this.atlasWidth = atlasWidth;
+            this.positions = positions;
+        }
+        
+        @Override
+        public void add(Pointer pixelData, int width, int height, int timestamp, int delay) {
+            int index = next(width, height, timestamp, delay);
+            if (pixelData != null) {
+                for (int row = 0; row < height; row++) {
+                    pixelData.read((long) row * width * 4, atlas, index + row * atlasWidth, width);
+                }
+            }
+        }
+        
+        @Override
+        public void add(int[] argb, int width, int height, int timestamp, int delay) {
+            int index = next(width, height, timestamp, delay);
+            if (argb != null) {
+                for (int row = 0; row < height; row++) {
+                    System.arraycopy(argb, row * width, atlas, index + row * atlasWidth, width);
+                }
+            }
+        }
+        
+        private int next(int width, int height, int timestamp, int delay) {
+            int i = atlasFrames.size();
+            if (i * 2 >= positions.length) {
+                throw new IllegalStateException("More frames than expected");
+            }
+            int x = positions[i * 2];
+            int y = positions[i * 2 + 1];
+            atlasFrames.add(new WebPAtlasFrame(x, y, width, height, timestamp, delay));
+            return y * atlasWidth + x;
+        }
+        
+        @Override
+        public List<WebPImageFrame> createFrames() {
+            return Collections.emptyList();
+        }
+        
+    }
+    
+    //--------------------------
+    // Tiled decoding
+    //--------------------------
+    /**
+     * Decode a large still image in tiles, so that the full image never has
+     * to be in memory at once. The tiles are passed to the consumer row by
+     * row, from left to right, while decoding continues.
+     * 
+     * <p>
+     * Only lossy images are supported. They are decoded in strips of whole
+     * rows of tiles (using the native cropping), each of which is then split
+     * into tiles. libwebp has to decode all rows above each strip again, so
+     * the strip height is chosen from the image size: at least 16 MB worth
+     * of rows (so most images are decoded at once) and at least a sixteenth
+     * of the image, which limits the total cost to about 8 full decodes. The
+     * native memory is bounded by the strip size.
+     * 
+     * <p>
+     * Lossless images are rejected, since libwebp always decodes them into
+     * a full size buffer, so decoding them in tiles wouldn't save any memory
+     * compared to {@link #decode(byte[], DecodeOptions)}.
+     * 
+     * <p>
+     * Of the options only the time limit, cancellation and partial result
+     * settings (checked between rows of tiles) and the quality are used.
+     * 
+     * @param rawData The raw bytes of the image
+     * @param tileWidth The width of the tiles (tiles at the right edge may be
+     * smaller)
+     * @param tileHeight The height of the tiles (tiles at the bottom edge may
+     * be smaller)
+     * @param options The options, may be {@code null}
+     * @param consumer Receives the tiles
+     * @return {@code true} if all tiles were decoded, {@code false} if
+     * decoding was cancelled and partial results were requested in the options
+     * @throws WebPDecoderException When the decoder encounters an issue (e.g.
+     * if it's not a valid WebP file or it is animated or lossless)
+     * @throws UnsatisfiedLinkError When there was an issue loading the native
+     * libraries (note that this is an error, not an exception) or the native
+     * library doesn't support decoding individual frames (see
+     * {@link #isFrameDecodingSupported()})
+     */
+    public static boolean decodeTiles(byte[] rawData, int tileWidth, int tileHeight,
+                                      DecodeOptions options, TileConsumer consumer)
+                                                throws WebPDecoderException,
+                                                       UnsatisfiedLinkError {
+        if (tileWidth < 1 || tileHeight < 1) {
+            throw new IllegalArgumentException("Invalid tile size");
+        }
+        if (options == null) {
+            options = new DecodeOptions();
+        }
+        if (!isFrameDecodingSupported()) {
+            throw new UnsatisfiedLinkError("Tiled decoding requires a native library that exports "
+                    + String.join(", ", FRAME_DECODING_FUNCTIONS));
+        }
+        Pointer bytes = null;
+        Pointer strip = null;
+        try {
+            bytes = malloc(rawData.length);
+            bytes.write(0, rawData, 0, rawData.length);
+            LibWebP.Size_T length = new LibWebP.Size_T(rawData.length);
+            
+            LibWebP.WebPBitstreamFeatures features = new LibWebP.WebPBitstreamFeatures();
+            if (lib().WebPGetFeaturesInternal(bytes, length, features, LibWebP.WEBP_DECODER_ABI_VERSION) != LibWebP.VP8_STATUS_OK) {
+                throw new WebPDecoderException("Failed getting image features, invalid image?");
+            }
+            if (features.has_animation != 0) {
+                throw new WebPDecoderException("Tiled decoding only supports still images");
+            }
+            if (features.format == LibWebP.FORMAT_LOSSLESS) {
+                throw new WebPDecoderException("Tiled decoding doesn't support lossless images, "
+                        + "which are always decoded in full");
+            }
+            int width = features.width;
+            int height = features.height;
+            int stripRows = getStripRows(width, height, tileHeight);
+            
+            Cancellation cancellation = new Cancellation(options);
+            // WebP images are at most 16383 pixels high and wide, so this fits
+            strip = malloc(width * 4 * Math.min(stripRows + STRIP_MARGIN * 3, height));
+            int stripTop = 0;
+            int stripEnd = 0;
+            for (int y = 0; y < height; y += tileHeight) {
+                if (cancellation.isCancelled()) {
+                    if (!options.partialResult) {
+                        throw new WebPDecoderCancelledException(String.format(
+                                "Decoding cancelled after %d of %d rows", y, height));
+                    }
+                    return false;
+                }
+                int rows = Math.min(tileHeight, height - y);
+                if (y + rows > stripEnd) {
+                    stripEnd = Math.min(height, y + stripRows);
+                    // Decode a few more rows, since the upsampling of the rows
+                    // at the edges depends on the neighbouring rows
+                    stripTop = Math.max(0, (y - STRIP_MARGIN) & ~1);
+                    int cropBottom = Math.min(height, stripEnd + STRIP_MARGIN);
+                    decodeStrip(bytes, length, stripTop, width, cropBottom - stripTop,
+                            options.quality, strip);
+                }
+                splitTiles(strip, stripTop, y, width, rows, tileWidth, consumer);
+            }
+            return true;
+        }
+        finally {
+            if (strip != null) {
+                free(strip);
+            }
+            if (bytes != null) {
+                free(bytes);
+            }
+        }
+    }
+    
+    private static final int STRIP_MARGIN = 2;
+    private static final int MIN_STRIP_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_STRIPS = 16;
+    
+    /**
+     * The number of rows to decode at once, a multiple of the tile height
+     * (except when it's the full image).
+     */
+    private static int getStripRows(int width, int height, int tileHeight) {
+        long rows = Math.max(MIN_STRIP_BYTES / (width * 4), (height + MAX_STRIPS - 1) / MAX_STRIPS);
+        rows = (rows + tileHeight - 1) / tileHeight * tileHeight;
+        return (int) Math.min(rows, height);
+    }
+    
+    /**
+     * Split a row of tiles from the decoded pixels.
+     * 
+     * @param pixels The decoded rows, with a stride of {@code width * 4}
+     * @param firstRow The row of the image the decoded rows start at
+     * @param y The row of the image the tiles start at
+     * @param width The width of the image
+     * @param height The height of the tiles
+     * @param tileWidth The width of the tiles
+     * @param consumer Receives the tiles
+     */
+    private static void splitTiles(Pointer pixels, int firstRow, int y, int width, int height,
+                                   int tileWidth, TileConsumer consumer) {
+        long stride = width * 4L;
+        for (int x = 0; x < width; x += tileWidth) {
+            int w = Math.min(tileWidth, width - x);
+            int[] tile = new int[w * height];
+            for (int row = 0; row < height; row++) {
+                long offset = (y - firstRow + row) * stride + x * 4L;
+                pixels.read(offset, tile, row * w, w);
+            }
+            consumer.tile(createImage(tile, w, height), x, y);
+        }
+    }
+    
+    /**
+     * Decode the given rows of the image into the given buffer.
+     */
+    private static void decodeStrip(Pointer data, LibWebP.Size_T length, int y,
+                                    int width, int height, DecodeQuality quality,
+                                    Pointer output)
+                                                throws WebPDecoderException {
+        LibWebP.WebPDecoderConfig config = initDecoderConfig(quality);
+        config.options.use_cropping = 1;
+        config.options.crop_left = 0;
+        config.options.crop_top = y;
+        config.options.crop_width = width;
+        config.options.crop_height = height;
+        config.output.colorspace = LibWebP.MODE_RGBA;
+        config.output.is_external_memory = 1;
+        config.output.u.setType(LibWebP.WebPRGBABuffer.class);
+        config.output.u.RGBA.rgba = output;
+        config.output.u.RGBA.stride = width * 4;
+        config.output.u.RGBA.size = new LibWebP.Size_T((long) width * 4 * height);
+        int status = lib().WebPDecode(data, length, config);
+        if (status != LibWebP.VP8_STATUS_OK) {
+            throw new WebPDecoderException(String.format(
+                    "Error decoding rows %d-%d (status %d)", y, y + height - 1, status));
+        }
+    }
+    
+    /**
+     * Receives tiles from
+     * {@link WebPDecoder#decodeTiles(byte[], int, int, DecodeOptions, TileConsumer)}.
+     */
+    public interface TileConsumer {
+        
+        /**
+         * Called for every decoded tile, on the decoding thread.
+         * 
+         * @param tile The image of the tile
+         * @param x The position of the tile in the full image
+         * @param y The position of the tile in the full image
+         */
+        void tile(BufferedImage tile, int x, int y);
+        
+    }
+    
+    //--------------------------
+    // YUV
+    //--------------------------
+    /**
+     * Decode the image into planar YUV 4:2:0 (I420) data, with an additional
+     * alpha plane for frames that have alpha (YUVA). This skips the
+     * conversion to RGB for lossy images and uses 1.5 bytes per pixel (2.5
+     * with alpha) instead of 4, which is useful for passing the frames on to
+     * a video encoder.
+     * 
+     * <p>
+     * For animations the individual frames (fragments) are returned as they
+     * are stored in the file, with their position on the canvas and the
+     * dispose and blend methods, since they can't be composed in YUV without
+     * converting to RGB.
+     * 
+     * <p>
+     * The native decoder writes directly into direct buffers allocated by
+     * Java, so no native memory has to be freed afterwards. Of the options the
+     * time limit, cancellation, partial result, max frames, frame index and
+     * quality settings are used.
+     * 
+     * @param rawData The raw bytes of the image
+     * @param options The options, may be {@code null}
+     * @return The decoded frames
+     * @throws WebPDecoderException When the decoder encounters an issue (e.g.
+     * if it's not a valid WebP file)
+     * @throws UnsatisfiedLinkError When there was an issue loading the native
+     * libraries or they don't support decoding individual frames (note that
+     * this is an error, not an exception)
+     * @see #isFrameDecodingSupported()
+     */
+    public static WebPYUVImage decodeYUV(byte[] rawData, DecodeOptions options)
+                                                throws WebPDecoderException,
+                                                       UnsatisfiedLinkError {
+        if (options == null) {
+            options = new DecodeOptions();
+        }
+        if (!isFrameDecodingSupported()) {
+            throw new UnsatisfiedLinkError("YUV decoding requires a native library that exports "
+                    + String.join(", ", FRAME_DECODING_FUNCTIONS));
+        }
+        Pointer bytes = null;
+        Pointer demuxer = null;
+        try {
+            bytes = malloc(rawData.length);
+            bytes.write(0, rawData, 0, rawData.length);
+            LibWebP.WebPData data = new LibWebP.WebPData();
+            data.bytes = bytes;
+            data.length = new LibWebP.Size_T(rawData.length);
+            demuxer = newDemuxer(data);
+            if (demuxer == null) {
+                throw new WebPDecoderException("Failed creating demuxer, invalid image?");
+            }
+            int canvasWidth = lib().WebPDemuxGetI(demuxer, LibWebP.WEBP_FF_CANVAS_WIDTH);
+            int canvasHeight = lib().WebPDemuxGetI(demuxer, LibWebP.WEBP_FF_CANVAS_HEIGHT);
+            int loopCount = lib().WebPDemuxGetI(demuxer, LibWebP.WEBP_FF_LOOP_COUNT);
+            List<AnimationCompositor.Frame> allFrames = getFrames(demuxer);
+            if (allFrames.isEmpty()) {
+                throw new WebPDecoderException("No frames found, invalid image?");
+            }
+            checkFrameIndex(options, allFrames.size());
+            
+            Cancellation cancellation = new Cancellation(options);
+            List<WebPYUVFrame> frames = new ArrayList<>();
+            boolean complete = true;
+            int timestamp = 0;
+            int duration = 0;
+            for (AnimationCompositor.Frame frame : allFrames) {
+                duration += frame.duration;
+            }
+            for (AnimationCompositor.Frame frame : allFrames) {
+                timestamp += frame.duration;
+                if (options.frameIndex != -1 && frame.index != options.frameIndex) {
+                    continue;
+                }
+                if (options.maxFrames > 0 && frame.index >= options.maxFrames) {
+                    break;
+                }
+                if (cancellation.isCancelled()) {
+                    if (!options.partialResult) {
+                        throw new WebPDecoderCancelledException(String.format(
+                                "Decoding cancelled after %d of %d frames",
+                                frames.size(), allFrames.size()));
+                    }
+                    complete = false;
+                    break;
+                }
+                frames.add(decodeFragmentYUV(frame, timestamp, options.quality));
+            }
+            return new WebPYUVImage(frames, canvasWidth, canvasHeight, loopCount,
+                    allFrames.size(), duration, complete);
+        }
+        finally {
+            if (demuxer != null) {
+                deleteDemuxer(demuxer);
+            }
+            if (bytes != null) {
+                free(bytes);
+            }
+        }
+    }
+    
+    /**
+     * Decode a single frame (fragment) into YUV(A) planes.
+     */
+    private static WebPYUVFrame decodeFragmentYUV(AnimationCompositor.Frame frame, int timestamp,
+                                                  DecodeQuality quality)
+                                                throws WebPDecoderException {
+        int width = frame.width;
+        int height = frame.height;
+        int uvWidth = (width + 1) / 2;
+        int uvHeight = (height + 1) / 2;
+        ByteBuffer y = ByteBuffer.allocateDirect(width * height);
+        ByteBuffer u = ByteBuffer.allocateDirect(uvWidth * uvHeight);
+        ByteBuffer v = ByteBuffer.allocateDirect(uvWidth * uvHeight);
+        ByteBuffer a = frame.hasAlpha ? ByteBuffer.allocateDirect(width * height) : null;
+        
+        LibWebP.WebPDecoderConfig config = initDecoderConfig(quality);
+        config.output.colorspace = a != null ? LibWebP.MODE_YUVA : LibWebP.MODE_YUV;
+        config.output.is_external_memory = 1;
+        config.output.u.setType(LibWebP.WebPYUVABuffer.class);
+        LibWebP.WebPYUVABuffer yuva = config.output.u.YUVA;
+        yuva.y = Native.getDirectBufferPointer(y);
+        yuva.u = Native.getDirectBufferPointer(u);
+        yuva.v = Native.getDirectBufferPointer(v);
+        yuva.y_stride = width;
+        yuva.u_stride = uvWidth;
+        yuva.v_stride = uvWidth;
+        yuva.y_size = new LibWebP.Size_T(y.capacity());
+        yuva.u_size = new LibWebP.Size_T(u.capacity());
+        yuva.v_size = new LibWebP.Size_T(v.capacity());
+        if (a != null) {
+            yuva.a = Native.getDirectBufferPointer(a);
+            yuva.a_stride = width;
+            yuva.a_size = new LibWebP.Size_T(a.capacity());
+        }
+        int status = lib().WebPDecode(frame.data, new LibWebP.Size_T(frame.size), config);
+        if (status != LibWebP.VP8_STATUS_OK) {
+            throw new WebPDecoderException(String.format(
+                    "Error decoding frame %d (status %d)", frame.index, status));
+        }
+        if (config.output.width != width || config.output.height != height) {
+            throw new WebPDecoderException(String.format(
+                    "Unexpected size of frame %d", frame.index));
+        }
+        return new WebPYUVFrame(frame, timestamp, y, u, v, a, width, uvWidth);
+    }
+    
+    //--------------------------
+    // Native resources
+    //--------------------------
+    private static final AtomicLong openBuffers = new AtomicLong();
+    private static final AtomicLong openDecoders = new AtomicLong();
+    
+    private static Pointer malloc(int size) throws WebPDecoderException {
+        Pointer result = lib().WebPMalloc(size);
+        if (result == null) {
+            throw new WebPDecoderException("Failed allocating native memory");
+        }
+        openBuffers.incrementAndGet();
+        return result;
+    }
+    
+    private static void free(Pointer pointer) {
+        lib().WebPFree(pointer);
+        openBuffers.decrementAndGet();
+    }
+    
+    private static Pointer newAnimDecoder(LibWebP.WebPData data) {
+        Pointer result = lib().WebPAnimDecoderNewInternal(data, null, LibWebP.WEBP_DEMUX_ABI_VERSION);
+        if (result != null) {
+            openDecoders.incrementAndGet();
+        }
+        return result;
+    }
+    
+    private static void deleteAnimDecoder(Pointer decoder) {
+        lib().WebPAnimDecoderDelete(decoder);
+        openDecoders.decrementAndGet();
+    }
+    
+    private static Pointer newDemuxer(LibWebP.WebPData data) {
+        Pointer result = lib().WebPDemuxInternal(data, 0, null, LibWebP.WEBP_DEMUX_ABI_VERSION);
+        if (result != null) {
+            openDecoders.incrementAndGet();
+        }
+        return result;
+    }
+    
+    private static void deleteDemuxer(Pointer demuxer) {
+        lib().WebPDemuxDelete(demuxer);
+        openDecoders.decrementAndGet();
+    }
+    
+    /**
+     * Get the total duration of all frames without decoding them. The chunks
+     * are read directly, so this also works with native libraries that don't
+     * export the demux functions.
+     * 
+     * @param data The image data
+     * @return The duration in milliseconds
+     * @throws WebPDecoderException If the image can't be parsed
+     */
+    private static int getTotalDuration(LibWebP.WebPData data) throws WebPDecoderException {
+        long length = data.length.longValue();
+        // "RIFF", size, "WEBP", followed by the chunks (FourCC, size, payload
+        // padded to an even size)
+        long offset = 12;
+        int duration = 0;
+        while (offset + 8 <= length) {
+            int fourCC = (int) readLittleEndian(data.bytes, offset, 4);
+            long size = readLittleEndian(data.bytes, offset + 4, 4);
+            if (fourCC == ANMF_FOURCC) {
+                if (offset + 8 + 16 > length) {
+                    throw new WebPDecoderException("Invalid frame chunk");
+                }
+                // Offsets and size, followed by the duration (24 bits each)
+                duration += readLittleEndian(data.bytes, offset + 8 + 12, 3);
+            }
+            offset += 8 + size + (size & 1);
+        }
+        return duration;
+    }
+    
+    /**
+     * "ANMF" when read as little-endian int.
+     */
+    private static final int ANMF_FOURCC = 0x464D4E41;
+    
+    private static long readLittleEndian(Pointer pointer, long offset, int bytes) {
+        long result = 0;
+        for (int i = 0; i < bytes; i++) {
+            result |= (pointer.getByte(offset + i) & 0xFFL) << (i * 8);
+        }
+        return result;
+    }
+    
+    /**
+     * Get info about all frames from the demuxer.
+     * 
+     * @param demuxer The demuxer
+     * @return The frames in order (empty if none could be found)
+     */
+    private static List<AnimationCompositor.Frame> getFrames(Pointer demuxer) {
+        List<AnimationCompositor.Frame> result = new ArrayList<>();
+        LibWebP.WebPIterator iter = new LibWebP.WebPIterator();
+        if (lib().WebPDemuxGetFrame(demuxer, 1, iter) != 0) {
+            do {
+                result.add(new AnimationCompositor.Frame(iter.frame_num - 1,
+                        iter.x_offset, iter.y_offset, iter.width, iter.height,
+                        iter.duration, iter.dispose_method, iter.blend_method,
+                        iter.has_alpha != 0, iter.fragment.bytes,
+                        iter.fragment.length.longValue()));
+            } while (lib().WebPDemuxNextFrame(iter) != 0);
+            lib().WebPDemuxReleaseIterator(iter);
+        }
+        return result;
+    }
+    
+    /**
+     * The number of native buffers allocated by this class that haven't been
+     * freed yet. Outside of decode calls this should always be 0, so this is
+     * mostly useful for testing.
+     * 
+     * @return The number of currently allocated buffers
+     */
+    public static long getOpenNativeBuffers() {
+        return openBuffers.get();
+    }
+    
+    /**
+     * The number of native decoder (or demuxer) objects created by this class
+     * that haven't been deleted yet. Outside of decode calls this should
+     * always be 0, so this is mostly useful for testing.
+     * 
+     * @return The number of currently existing decoders
+     */
+    public static long getOpenNativeDecoders() {
+        return openDecoders.get();
+    }
+    
+    //--------------------------
+    // Create images
+    //--------------------------
+    private static BufferedImage createImage(Pointer pixelData, int width, int height) {
+        if (pixelData != null) {
+            return createImage(pixelData.getIntArray(0, width * height), width, height);
+        }
+        return null;
+    }
+    
+    static BufferedImage createImage(int[] pixels, int width, int height) {
+        ColorModel colorModel = new DirectColorModel(32, 0x000000ff, 0x0000ff00, 0x00ff0000, 0xff000000);
+
+        SampleModel sampleModel = colorModel.createCompatibleSampleModel(width, height);
+        DataBufferInt db = new DataBufferInt(pixels, width * height);
+        WritableRaster raster = WritableRaster.createWritableRaster(sampleModel, db, null);
+
+        return new BufferedImage(colorModel, raster, false, new Hashtable<Object, Object>());
+    }
+    
+    static BufferedImage createIndexedImage(byte[] indices, IndexColorModel colorModel, int width, int height) {
+        DataBufferByte db = new DataBufferByte(indices, width * height);
+        WritableRaster raster = Raster.createInterleavedRaster(db, width, height, width, 1, new int[]{0}, null);
+        
+        return new BufferedImage(colorModel, raster, false, new Hashtable<Object, Object>());
+    }
+    
+    /**
+     * Collects the decoded frames and creates the images. For indexed color
+     * frames are stored as palette indices while they fit into a shared
+     * palette, otherwise it falls back to regular 32-bit frames.
+     */
+    private static class FrameCollector {
+        
+        private final ColorPalette palette;
+        private final List<Object> pixels = new ArrayList<>();
+        private final List<int[]> meta = new ArrayList<>();
+        private boolean fallback;
+        
+        FrameCollector(boolean indexed) {
+            this.palette = indexed ? new ColorPalette() : null;
+        }
+        
+        public void add(Pointer pixelData, int width, int height, int timestamp, int delay) {
+            int[] argb = null;
+            if (pixelData != null) {
+                argb = pixelData.getIntArray(0, width * height);
+            }
+            add(argb, width, height, timestamp, delay);
+        }
+        
+        public void add(int[] argb, int width, int height, int timestamp, int delay) {
+            Object data = argb;
+            if (argb != null && palette != null && !fallback) {
+                byte[] indices = palette.toIndices(argb);
+                if (indices != null) {
+                    data = indices;
+                }
+                else {
+                    setFallback();
+                }
+            }
+            pixels.add(data);
+            meta.add(new int[]{width, height, timestamp, delay});
+        }
+        
+        /**
+         * Too many colors, so convert already collected frames back.
+         */
+        private void setFallback() {
+            fallback = true;
+            for (int i = 0; i < pixels.size(); i++) {
+                if (pixels.get(i) instanceof byte[]) {
+                    pixels.set(i, palette.toPixels((byte[]) pixels.get(i)));
+                }
+            }
+        }
+        
+        public List<WebPImageFrame> createFrames() {
+            IndexColorModel colorModel = palette == null || fallback ? null : palette.createColorModel();
+            List<WebPImageFrame> result = new ArrayList<>();
+            for (int i = 0; i < pixels.size(); i++) {
+                Object data = pixels.get(i);
+                int[] m = meta.get(i);
+                BufferedImage image = null;
+                if (data instanceof byte[]) {
+                    image = createIndexedImage((byte[]) data, colorModel, m[0], m[1]);
+                }
+                else if (data instanceof int[]) {
+                    image = createImage((int[]) data, m[0], m[1]);
+                }
+                result.add(new WebPImageFrame(image, m[2], m[3]));
+            }
+            return result;
+        }
+        
+        /**
+         * The size still images should be scaled to while decoding.
+         * 
+         * @return The size, or {@code null} for the original size
+         */
+        public Dimension getDecodeSize() {
+            return null;
+        }
+        
+    }
+    
+    /**
+     * Creates several sizes of each frame. The bounding box of all sizes is
+     * scaled while decoding for still images (so it is already passed to
+     * this at that size), otherwise it is scaled from the decoded canvas.
+     * Each size is then reduced from the smallest already created size that
+     * covers it in both dimensions, or the bounding box, so no size is ever
+     * enlarged on one axis (e.g. 100x10 and 10x100).
+     */
+    private static class MultiSizeFrames extends FrameCollector {
+        
+        /**
+         * Largest first.
+         */
+        private final List<Dimension> sizes;
+        private final Dimension boundingBox;
+        private final List<WebPImageFrame> result = new ArrayList<>();
+        
+        MultiSizeFrames(List<Dimension> sizes) {
+            super(false);
+            this.sizes = new ArrayList<>(sizes);
+            this.sizes.sort((a, b) -> Long.compare((long) b.width * b.height, (long) a.width * a.height));
+            int width = 0;
+            int height = 0;
+            for (Dimension size : sizes) {
+                width = Math.max(width, size.width);
+                height = Math.max(height, size.height);
+            }
+            this.boundingBox = new Dimension(width, height);
+        }
+        
+        @Override
+        public void add(int[] argb, int width, int height, int timestamp, int delay) {
+            if (argb == null) {
+                result.add(new WebPImageFrame((BufferedImage) null, timestamp, delay));
+                return;
+            }
+            int[] boxPixels = ImageScaler.scale(argb, width, height, boundingBox.width, boundingBox.height);
+            // Smallest first, as expected for multi-resolution images
+            BufferedImage[] images = new BufferedImage[sizes.size()];
+            int[][] created = new int[sizes.size()][];
+            for (int i = 0; i < sizes.size(); i++) {
+                Dimension size = sizes.get(i);
+                Dimension sourceSize = boundingBox;
+                int[] source = boxPixels;
+                for (int j = 0; j < i; j++) {
+                    Dimension other = sizes.get(j);
+                    if (other.width >= size.width && other.height >= size.height
+                            && (long) other.width * other.height < (long) sourceSize.width * sourceSize.height) {
+                        sourceSize = other;
+                        source = created[j];
+                    }
+                }
+                created[i] = ImageScaler.scale(source, sourceSize.width, sourceSize.height,
+                        size.width, size.height);
+                images[sizes.size() - 1 - i] = createImage(created[i], size.width, size.height);
+            }
+            result.add(new WebPImageFrame(Arrays.asList(images), timestamp, delay));
+        }
+        
+        @Override
+        public List<WebPImageFrame> createFrames() {
+            return result;
+        }
+        
+        @Override
+        public Dimension getDecodeSize() {
+            return boundingBox;
+        }
+        
+    }
+    
+    /**
+     * Checks whether decoding should be stopped, based on the time limit and
+     * cancellation token in the options.
+     */
+    private static class Cancellation {
+        
+        private final BooleanSupplier cancelled;
+        private final long deadline;
+        
+        Cancellation(DecodeOptions options) {
+            this.cancelled = options.cancelled;
+            this.deadline = options.timeLimit > 0
+                    ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(options.timeLimit)
+                    : 0;
+        }
+        
+        public boolean isCancelled() {
+            if (deadline != 0 && System.nanoTime() - deadline > 0) {
+                return true;
+            }
+            return cancelled != null && cancelled.getAsBoolean();
+        }
+        
+    }
+    
+    /**
+     * Options for {@link WebPDecoder#decode(byte[], DecodeOptions)}. The
+     * setters return the same object, so calls can be chained.
+     */
+    public static class DecodeOptions {
+        
+        private boolean indexedColor;
+        private long timeLimit;
+        private BooleanSupplier cancelled;
+        private boolean partialResult;
+        private int maxFrames;
+        private int frameIndex = -1;
+        private Executor executor;
+        private DecodeQuality quality = DecodeQuality.DEFAULT;
+        private List<Dimension> sizes;
+        
+        /**
+         * Store frames as 8-bit indexed images with a palette shared by all
+         * frames ({@link BufferedImage#TYPE_BYTE_INDEXED}), which uses a
+         * quarter of the memory of regular frames. If the image contains more
+         * than 256 distinct colors (across all frames) the regular 32-bit
+         * frames are returned instead.
+         * 
+         * <p>
+         * Counting the colors adds some overhead to decoding, so this is
+         * mostly useful for images that are kept in memory for a while.
+         * 
+         * @param indexedColor Whether to try to create indexed images
+         * @return This object
+         */
+        public DecodeOptions setIndexedColor(boolean indexedColor) {
+            this.indexedColor = indexedColor;
+            return this;
+        }
+        
+        public boolean isIndexedColor() {
+            return indexedColor;
+        }
+        
+        /**
+         * A String containing the options that affect the decoded result
+         * (but not how it is decoded), e.g. for use as a cache key.
+         * 
+         * @return The String
+         */
+        String getOutputKey() {
+            return String.format("indexed=%b,maxFrames=%d,frameIndex=%d,quality=%s,sizes=%s",
+                    indexedColor, maxFrames, frameIndex, quality, sizesToString());
+        }
+        
+        /**
+         * Stop decoding when it takes longer than the given time. This is
+         * checked between frames, so a single large frame may still take
+         * longer than the limit.
+         * 
+         * @param timeLimit The time limit in milliseconds, 0 for no limit
+         * @return This object
+         * @see #setPartialResult(boolean)
+         */
+        public DecodeOptions setTimeLimit(long timeLimit) {
+            this.timeLimit = timeLimit;
+            return this;
+        }
+        
+        public long getTimeLimit() {
+            return timeLimit;
+        }
+        
+        /**
+         * Stop decoding when the given function returns {@code true}, for
+         * example when the client the image is decoded for has gone away. It
+         * is called between frames, potentially from several threads if the
+         * same options are used for several decodes. Using
+         * {@code () -> Thread.currentThread().isInterrupted()} allows stopping
+         * the decoding by interrupting the decoding thread (unlike the method
+         * reference {@code Thread.currentThread()::isInterrupted}, which would
+         * always check the thread that created the options).
+         * 
+         * @param cancelled The cancellation check, may be {@code null}
+         * @return This object
+         * @see #setPartialResult(boolean)
+         */
+        public DecodeOptions setCancelled(BooleanSupplier cancelled) {
+            this.cancelled = cancelled;
+            return this;
+        }
+        
+        public BooleanSupplier getCancelled() {
+            return cancelled;
+        }
+        
+        /**
+         * When decoding is cancelled or runs out of time, return the frames
+         * that have been decoded so far instead of throwing a
+         * {@link WebPDecoderCancelledException}. The returned image will have
+         * {@link WebPImage#complete} set to {@code false}.
+         * 
+         * @param partialResult Whether to return partial results
+         * @return This object
+         */
+        public DecodeOptions setPartialResult(boolean partialResult) {
+            this.partialResult = partialResult;
+            return this;
+        }
+        
+        public boolean isPartialResult() {
+            return partialResult;
+        }
+        
+        /**
+         * Stop decoding after the given number of frames, for example to only
+         * get the first frame for a preview. The {@link WebPImage} metadata
+         * (like {@link WebPImage#frameCount} or {@link WebPImage#duration})
+         * still refers to the full animation.
+         * 
+         * @param maxFrames The maximum number of frames, 0 to decode all
+         * @return This object
+         * @throws IllegalArgumentException If {@code maxFrames} is negative
+         */
+        public DecodeOptions setMaxFrames(int maxFrames) {
+            if (maxFrames < 0) {
+                throw new IllegalArgumentException("Invalid max frames " + maxFrames);
+            }
+            this.maxFrames = maxFrames;
+            return this;
+        }
+        
+        public int getMaxFrames() {
+            return maxFrames;
+        }
+        
+        /**
+         * Only return the frame with the given index (starting at 0). Since
+         * frames may build on the previous ones, the frames before it still
+         * have to be decoded, but they are not copied into images. Overrides
+         * {@link #setMaxFrames(int)}.
+         * 
+         * @param frameIndex The index of the frame, -1 to decode all
+         * @return This object
+         * @throws IllegalArgumentException If {@code frameIndex} is less than
+         * -1
+         */
+        public DecodeOptions setFrameIndex(int frameIndex) {
+            if (frameIndex < -1) {
+                throw new IllegalArgumentException("Invalid frame index " + frameIndex);
+            }
+            this.frameIndex = frameIndex;
+            return this;
+        }
+        
+        public int getFrameIndex() {
+            return frameIndex;
+        }
+        
+        /**
+         * Decode the frames of an animation in parallel using the given
+         * executor (for example {@code ForkJoinPool.commonPool()}), instead of
+         * one after another. The decoded frames are then composed onto the
+         * canvas in order on the calling thread.
+         * 
+         * <p>
+         * This only helps with large animations when the executor has idle
+         * cores, e.g. when a few images are decoded at once on a multi-core
+         * machine. The frames are decoded individually and composed in Java,
+         * which on a single core is about a third slower than the libwebp
+         * animation decoder (measured with a 450 frame animation), so it
+         * shouldn't be used when the cores are already busy with other
+         * decodes, or for small or still images. Frames that the executor
+         * hasn't started yet when they are needed are decoded on the calling
+         * thread, so decoding from a task running on the same executor doesn't
+         * deadlock, even if all its threads are busy.
+         * 
+         * <p>
+         * Ignored if the native library doesn't support decoding individual
+         * frames, see {@link WebPDecoder#isFrameDecodingSupported()}.
+         * 
+         * @param executor The executor, or {@code null} to decode all frames
+         * on the calling thread
+         * @return This object
+         */
+        public DecodeOptions setExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+        
+        public Executor getExecutor() {
+            return executor;
+        }
+        
+        /**
+         * Trade quality for decoding speed, or the other way around. This
+         * only affects lossy images (or frames).
+         * 
+         * <p>
+         * Still images are decoded with a single native decode, bypassing the
+         * libwebp animation decoder, which doesn't support these settings.
+         * For animations {@link DecodeQuality#HIGH} decodes the frames
+         * individually and composes them in Java (like when an executor is
+         * set, but on the calling thread if no executor is set), while
+         * {@link DecodeQuality#FAST} is only applied when an executor is set,
+         * since composing the frames in Java costs more than it saves.
+         * Ignored if the native library doesn't support decoding individual
+         * frames, see {@link WebPDecoder#isFrameDecodingSupported()}.
+         * 
+         * @param quality The quality, {@code null} for the default
+         * @return This object
+         */
+        public DecodeOptions setQuality(DecodeQuality quality) {
+            this.quality = quality != null ? quality : DecodeQuality.DEFAULT;
+            return this;
+        }
+        
+        public DecodeQuality getQuality() {
+            return quality;
+        }
+        
+        /**
+         * Create each frame in several sizes, for example for different zoom
+         * levels, available through {@link WebPImageFrame#resolutions} and
+         * {@link WebPImageFrame#getMultiResolutionImage()}.
+         * {@link WebPImageFrame#img} is the largest size.
+         * 
+         * <p>
+         * For still images the bounding box of all sizes is scaled by the
+         * native decoder while decoding (if supported by the native library),
+         * for animations the composed frames are scaled to it. Each size is
+         * then reduced using a box filter from the smallest size that covers
+         * it in both dimensions, or the bounding box, so sizes that aren't
+         * nested (e.g. 100x10 and 10x100) are never enlarged on one axis. The
+         * sizes don't have to keep the aspect ratio of the image.
+         * 
+         * <p>
+         * This is only used by {@link WebPDecoder#decode(byte[], DecodeOptions)}
+         * ({@link WebPDecoder#decodeAtlas(List, DecodeOptions)} rejects it)
+         * and overrides {@link #setIndexedColor(boolean)}.
+         * 
+         * @param sizes The sizes, {@code null} or empty to only create the
+         * original size
+         * @return This object
+         */
+        public DecodeOptions setSizes(List<Dimension> sizes) {
+            if (sizes == null || sizes.isEmpty()) {
+                this.sizes = null;
+            }
+            else {
+                List<Dimension> copy = new ArrayList<>();
+                for (Dimension size : sizes) {
+                    if (size.width < 1 || size.height < 1) {
+                        throw new IllegalArgumentException("Invalid size " + size);
+                    }
+                    copy.add(new Dimension(size));
+                }
+                this.sizes = Collections.unmodifiableList(copy);
+            }
+            return this;
+        }
+        
+        public List<Dimension> getSizes() {
+            return sizes;
+        }
+        
+        private String sizesToString() {
+            if (sizes == null) {
+                return "";
+            }
+            StringBuilder b = new StringBuilder();
+            for (Dimension size : sizes) {
+                b.append(size.width).append("x").append(size.height).append(";");
+            }
+            return b.toString();
+        }
+        
+    }
+    
+    /**
+     * The quality settings for decoding lossy images, see
+     * {@link DecodeOptions#setQuality(DecodeQuality)}.
+     */
+    public enum DecodeQuality {
+        
+        /**
+         * Skip the in-loop filtering and use simple (pointwise) upsampling of
+         * the chroma, which takes about 20-40% less time for lossy still
+         * images. May show some blockiness, mostly acceptable for small images like
+         * emotes or thumbnails. Not applied to animations unless an executor
+         * is set.
+         */
+        FAST,
+        
+        /**
+         * The libwebp default settings.
+         */
+        DEFAULT,
+        
+        /**
+         * Apply dithering to reduce banding in smooth gradients (of the colors
+         * and quantized alpha), which is slightly slower. libwebp only applies
+         * it where it considers it useful, so many images are unaffected.
+         */
+        HIGH
+        
+    }
+    
+    public static class WebPDecoderException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public WebPDecoderException(String message) {
+            super(message);
+        }
+
+    }
+    
+    /**
+     * Thrown when decoding was cancelled or ran out of time before it was
+     * finished (and no partial result was requested).
+     */
+    public static class WebPDecoderCancelledException extends WebPDecoderException {
+
+        private static final long serialVersionUID = 1L;
+
+        public WebPDecoderCancelledException(String message) {
+            super(message);
+        }
+
+    }
+    
+    //==========================
+    // Decoded Image Classes
+    //==========================
+    /**
+     * A decoded image containing the individual frames (for static images just
+     * one) and some meta info.
+     */
+    public static class WebPImage {
+        
+        public final List<WebPImageFrame> frames;
+        public final int canvasWidth;
+        public final int canvasHeight;
+        public final int loopCount;
+        public final Color bgColor;
+        public final int frameCount;
+        
+        /**
+         * The total duration of all frames (in ms), even if not all frames
+         * were decoded.
+         */
+        public final int duration;
+        
+        /**
+         * {@code false} if decoding was cancelled and only the frames decoded
+         * until then are contained (see
+         * {@link DecodeOptions#setPartialResult(boolean)}).
+         */
+        public final boolean complete;
+        
+        WebPImage(List<WebPImageFrame> frames, int canvasWidth, int canvasHeight,
+                  int loopCount, Color bgColor, int frameCount,
+                  int duration, boolean complete) {
+            this.frames = frames;
+            this.duration = duration;
+            this.complete = complete;
+            this.canvasWidth = canvasWidth;
+            this.canvasHeight = canvasHeight;
+            this.frameCount = frameCount;
+            this.loopCount = loopCount;
+            this.bgColor = bgColor;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d x %d / %d loops / %d frames %s%s",
+                    canvasWidth, canvasHeight, loopCount, frameCount, frames,
+                    complete ? "" : " (incomplete)");
+        }
+        
+    }
+    
+    /**
+     * The frames of one or several images packed into a single image, as
+     * returned by {@link WebPDecoder#decodeAtlas(List, DecodeOptions)}.
+     */
+    public static class WebPAtlas {
+        
+        /**
+         * The image containing all frames.
+         */
+        public final BufferedImage image;
+        
+        /**
+         * One entry for each decoded image, in the same order as the input.
+         */
+        public final List<WebPAtlasEntry> entries;
+        
+        private WebPAtlas(BufferedImage image, List<WebPAtlasEntry> entries) {
+            this.image = image;
+            this.entries = Collections.unmodifiableList(entries);
+        }
+        
+        /**
+         * Get the frame as a separate image, which shares the pixel data with
+         * the atlas.
+         * 
+         * @param frame The frame
+         * @return The image of the frame
+         */
+        public BufferedImage getFrameImage(WebPAtlasFrame frame) {
+            return image.getSubimage(frame.x, frame.y, frame.width, frame.height);
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d x %d %s",
+                    image.getWidth(), image.getHeight(), entries);
+        }
+        
+    }
+    
+    /**
+     * Meta info of an image in an atlas and where its frames are located.
+     */
+    public static class WebPAtlasEntry {
+        
+        public final List<WebPAtlasFrame> frames;
+        public final int canvasWidth;
+        public final int canvasHeight;
+        public final int loopCount;
+        public final int frameCount;
+        public final int duration;
+        public final boolean complete;
+        
+        private WebPAtlasEntry(List<WebPAtlasFrame> frames, int canvasWidth, int canvasHeight,
+                               int loopCount, int frameCount, int duration,
+                               boolean complete) {
+            this.frames = Collections.unmodifiableList(frames);
+            this.canvasWidth = canvasWidth;
+            this.canvasHeight = canvasHeight;
+            this.loopCount = loopCount;
+            this.frameCount = frameCount;
+            this.duration = duration;
+            this.complete = complete;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d x %d / %d loops / %d frames %s",
+                    canvasWidth, canvasHeight, loopCount, frameCount, frames);
+        }
+        
+    }
+    
+    /**
+     * The location of a single frame in an atlas.
+     */
+    public static class WebPAtlasFrame {
+        
+        public final int x;
+        public final int y;
+        public final int width;
+        public final int height;
+        
+        /**
+         * Counted from the start of the animation until when to show the frame
+         * (in ms).
+         */
+        public final int timestamp;
+        
+        /**
+         * How long to show the frame (in ms).
+         */
+        public final int delay;
+        
+        private WebPAtlasFrame(int x, int y, int width, int height, int timestamp, int delay) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.timestamp = timestamp;
+            this.delay = delay;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d,%d/%d", x, y, delay);
+        }
+        
+    }
+    
+    /**
+     * {@code java.awt.image.BaseMultiResolutionImage(Image...)}, if available
+     * (Java 9+), since this library is compatible with Java 8.
+     */
+    private static final Constructor<? extends Image> MULTI_RESOLUTION_IMAGE = findMultiResolutionImage();
+    
+    private static Constructor<? extends Image> findMultiResolutionImage() {
+        try {
+            return Class.forName("java.awt.image.BaseMultiResolutionImage")
+                    .asSubclass(Image.class)
+                    .getConstructor(Image[].class);
+        }
+        catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+    
+    /**
+     * A single frame of a decoded image.
+     */
+    public static class WebPImageFrame {
+        
+        /**
+         * The image.
+         */
+        public final BufferedImage img;
+        
+        /**
+         * Counted from the start of the animation until when to show the frame
+         * (in ms).
+         */
+        public final int timestamp;
+        
+        /**
+         * How long to show the frame (in ms).
+         */
+        public final int delay;
+        
+        /**
+         * The frame in all sizes set in
+         * {@link DecodeOptions#setSizes(List)}, smallest first, or otherwise
+         * just {@link #img} (empty if there is no image). Can't be modified.
+         */
+        public final List<BufferedImage> resolutions;
+        
+        WebPImageFrame(BufferedImage img, int timestamp, int delay) {
+            this.img = img;
+            this.timestamp = timestamp;
+            this.delay = delay;
+            this.resolutions = img != null
+                    ? Collections.singletonList(img)
+                    : Collections.<BufferedImage>emptyList();
+        }
+        
+        WebPImageFrame(List<BufferedImage> resolutions, int timestamp, int delay) {
+            this.img = resolutions.get(resolutions.size() - 1);
+            this.timestamp = timestamp;
+            this.delay = delay;
+            this.resolutions = Collections.unmodifiableList(resolutions);
+        }
+        
+        /**
+         * Get the frame as a multi-resolution image containing all
+         * {@link #resolutions}, with the smallest as the base image, so it can
+         * be drawn at different zoom levels (or screen scalings) without
+         * scaling.
+         * 
+         * <p>
+         * The {@code BaseMultiResolutionImage} class is only available in
+         * Java 9 and later, on Java 8 this returns {@link #img}.
+         * 
+         * @return The image, may be {@code null} if there is no image
+         */
+        public Image getMultiResolutionImage() {
+            if (resolutions.size() < 2 || MULTI_RESOLUTION_IMAGE == null) {
+                return img;
+            }
+            try {
+                return MULTI_RESOLUTION_IMAGE.newInstance((Object) resolutions.toArray(new Image[0]));
+            }
+            catch (ReflectiveOperationException ex) {
+                return img;
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return String.valueOf(delay);
+        }
+        
+    }
+    
+    /**
+     * An image decoded into planar YUV data, as returned by
+     * {@link WebPDecoder#decodeYUV(byte[], DecodeOptions)}. The list of frames
+     * can't be modified.
+     */
+    public static class WebPYUVImage {
+        
+        /**
+         * The decoded frames, for animations the individual frames as they
+         * are stored in the file (not composed onto the canvas).
+         */
+        public final List<WebPYUVFrame> frames;
+        public final int canvasWidth;
+        public final int canvasHeight;
+        public final int loopCount;
+        public final int frameCount;
+        
+        /**
+         * The total duration of all frames (in ms), even if not all frames
+         * were decoded.
+         */
+        public final int duration;
+        
+        /**
+         * {@code false} if decoding was cancelled and only the frames decoded
+         * until then are contained (see
+         * {@link DecodeOptions#setPartialResult(boolean)}).
+         */
+        public final boolean complete;
+        
+        private WebPYUVImage(List<WebPYUVFrame> frames, int canvasWidth, int canvasHeight,
+                             int loopCount, int frameCount, int duration,
+                             boolean complete) {
+            this.frames = Collections.unmodifiableList(frames);
+            this.canvasWidth = canvasWidth;
+            this.canvasHeight = canvasHeight;
+            this.loopCount = loopCount;
+            this.frameCount = frameCount;
+            this.duration = duration;
+            this.complete = complete;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d x %d / %d loops / %d frames %s%s",
+                    canvasWidth, canvasHeight, loopCount, frameCount, frames,
+                    complete ? "" : " (incomplete)");
+        }
+        
+    }
+    
+    /**
+     * A single frame decoded into YUV 4:2:0 planes. The chroma planes have
+     * half the width and height of the frame (rounded up). The buffers are
+     * direct buffers and each row of a plane is {@code stride} bytes.
+     */
+    public static class WebPYUVFrame {
+        
+        public static final int DISPOSE_NONE = AnimationCompositor.Frame.DISPOSE_NONE;
+        public static final int DISPOSE_BACKGROUND = AnimationCompositor.Frame.DISPOSE_BACKGROUND;
+        public static final int BLEND = AnimationCompositor.Frame.BLEND;
+        public static final int NO_BLEND = AnimationCompositor.Frame.NO_BLEND;
+        
+        /**
+         * Index of the frame in the animation (starting at 0).
+         */
+        public final int index;
+        
+        /**
+         * The position of the frame on the canvas.
+         */
+        public final int x;
+        public final int y;
+        public final int width;
+        public final int height;
+        
+        /**
+         * Counted from the start of the animation until when to show the frame
+         * (in ms).
+         */
+        public final int timestamp;
+        
+        /**
+         * How long to show the frame (in ms).
+         */
+        public final int delay;
+        
+        /**
+         * How the area of the frame is disposed before the next frame,
+         * {@link #DISPOSE_NONE} or {@link #DISPOSE_BACKGROUND}.
+         */
+        public final int dispose;
+        
+        /**
+         * Whether the frame is blended with the previous canvas,
+         * {@link #BLEND} or {@link #NO_BLEND}.
+         */
+        public final int blend;
+        
+        public final ByteBuffer yPlane;
+        public final ByteBuffer uPlane;
+        public final ByteBuffer vPlane;
+        
+        /**
+         * The alpha plane, {@code null} if the frame has no alpha.
+         */
+        public final ByteBuffer aPlane;
+        
+        /**
+         * The stride of the Y and alpha planes.
+         */
+        public final int yStride;
+        
+        /**
+         * The stride of the U and V planes.
+         */
+        public final int uvStride;
+        
+        private WebPYUVFrame(AnimationCompositor.Frame frame, int timestamp,
+                             ByteBuffer yPlane, ByteBuffer uPlane, ByteBuffer vPlane,
+                             ByteBuffer aPlane, int yStride, int uvStride) {
+            this.index = frame.index;
+            this.x = frame.x;
+            this.y = frame.y;
+            this.width = frame.width;
+            this.height = frame.height;
+            this.timestamp = timestamp;
+            this.delay = frame.duration;
+            this.dispose = frame.dispose;
+            this.blend = frame.blend;
+            this.yPlane = yPlane;
+            this.uPlane = uPlane;
+            this.vPlane = vPlane;
+            this.aPlane = aPlane;
+            this.yStride = yStride;
+            this.uvStride = uvStride;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d,%d %dx%d/%d%s", x, y, width, height, delay,
+                    aPlane != null ? " (alpha)" : "");
+        }
+        
+    }
+    
+    //==========================
+    // libwebp
+    //==========================
+    private interface LibWebP extends Library {
+        
+        /*
+        [webp/types.h]
+            // Allocates 'size' bytes of memory. Returns NULL upon error. Memory
+            // must be deallocated by calling WebPFree(). This function is made available
+            // by the core 'libwebp' library.
+            WEBP_EXTERN void* WebPMalloc(size_t size);
+        */
+        public Pointer WebPMalloc(int size);
+        
+        /*
+        [webp/types.h]
+            // Releases memory returned by the WebPDecode*() functions (from decode.h).
+            WEBP_EXTERN void WebPFree(void* ptr);
+        */
+        public void WebPFree(Pointer pointer);
+        
+        static final int WEBP_DEMUX_ABI_VERSION = 0x0107;
+        
+        /*
+        [webp/demux.h]
+            // Internal, version-checked, entry point.
+            WEBP_EXTERN WebPAnimDecoder* WebPAnimDecoderNewInternal(
+                const WebPData*, const WebPAnimDecoderOptions*, int);
+
+            // Creates and initializes a WebPAnimDecoder object.
+            // Parameters:
+            //   webp_data - (in) WebP bitstream. This should remain unchanged during the
+            //                    lifetime of the output WebPAnimDecoder object.
+            //   dec_options - (in) decoding options. Can be passed NULL to choose
+            //                      reasonable defaults (in particular, color mode MODE_RGBA
+            //                      will be picked).
+            // Returns:
+            //   A pointer to the newly created WebPAnimDecoder object, or NULL in case of
+            //   parsing error, invalid option or memory error.
+            static WEBP_INLINE WebPAnimDecoder* WebPAnimDecoderNew(
+                const WebPData* webp_data, const WebPAnimDecoderOptions* dec_options) {
+              return WebPAnimDecoderNewInternal(webp_data, dec_options,
+                                                WEBP_DEMUX_ABI_VERSION);
+            }
+        */
+        public Pointer WebPAnimDecoderNewInternal(WebPData webp_data, Structure dec_options, int version);
+        
+        /*
+        [webp/mux_types.h]
+            // Data type used to describe 'raw' data, e.g., chunk data
+            // (ICC profile, metadata) and WebP compressed image data.
+            // 'bytes' memory must be allocated using WebPMalloc() and such.
+            struct WebPData {
+              const uint8_t* bytes;
+              size_t size;
+            };
+        */
+        @Structure.FieldOrder({ "bytes", "length" })
+        public static class WebPData extends Structure {
+            public Pointer bytes;
+            public Size_T length;
+        }
+        
+        /*
         [webp/demux.h]
             // Get global information about the animation.
             // Parameters:
@@ -552,6 +2629,384 @@ public class WebPDecoder {
         */
         public void WebPAnimDecoderDelete(Pointer dec);
         
+        /*
+        [webp/demux.h]
+            // Internal, version-checked, entry point
+            WEBP_EXTERN WebPDemuxer* WebPDemuxInternal(
+                const WebPData*, int, WebPDemuxState*, int);
+
+            // Parses the full WebP file given by 'data'. For single images the WebP file
+            // header alone or the file header and the chunk header may be absent.
+            // Returns a WebPDemuxer object on successful parse, NULL otherwise.
+            static WEBP_INLINE WebPDemuxer* WebPDemux(const WebPData* data) {
+              return WebPDemuxInternal(data, 0, NULL, WEBP_DEMUX_ABI_VERSION);
+            }
+        */
+        public Pointer WebPDemuxInternal(WebPData data, int allow_partial, Pointer state, int version);
+        
+        /*
+        [webp/demux.h]
+            // Frees memory associated with 'dmux'.
+            WEBP_EXTERN void WebPDemuxDelete(WebPDemuxer* dmux);
+        */
+        public void WebPDemuxDelete(Pointer dmux);
+        
+        /*
+        [webp/demux.h]
+            typedef enum WebPFormatFeature {
+              WEBP_FF_FORMAT_FLAGS,      // bit-wise combination of WebPFeatureFlags
+                                         // corresponding to the 'VP8X' chunk (if present).
+              WEBP_FF_CANVAS_WIDTH,
+              WEBP_FF_CANVAS_HEIGHT,
+              WEBP_FF_LOOP_COUNT,        // only relevant for animated file
+              WEBP_FF_BACKGROUND_COLOR,  // idem.
+              WEBP_FF_FRAME_COUNT        // Number of frames present in the demux object.
+                                         // In case of a partial demux, this is the number
+                                         // of frames seen so far, with the last frame
+                                         // possibly being partial.
+            } WebPFormatFeature;
+
+            // Get the 'feature' value from the 'dmux'.
+            // NOTE: values are only valid if WebPDemux() was used or WebPDemuxPartial()
+            // returned a state > WEBP_DEMUX_PARSING_HEADER.
+            // If 'feature' is WEBP_FF_FORMAT_FLAGS, the returned value is a bit-wise
+            // combination of WebPFeatureFlags values.
+            // If 'feature' is WEBP_FF_LOOP_COUNT, WEBP_FF_BACKGROUND_COLOR, the returned
+            // value is only meaningful if the bitstream is animated.
+            WEBP_EXTERN uint32_t WebPDemuxGetI(
+                const WebPDemuxer* dmux, WebPFormatFeature feature);
+        */
+        static final int WEBP_FF_CANVAS_WIDTH = 1;
+        static final int WEBP_FF_CANVAS_HEIGHT = 2;
+        static final int WEBP_FF_LOOP_COUNT = 3;
+        static final int WEBP_FF_FRAME_COUNT = 5;
+        
+        public int WebPDemuxGetI(Pointer dmux, int feature);
+        
+        /*
+        [webp/demux.h]
+            // Retrieves frame 'frame_number' from 'dmux'.
+            // 'iter->fragment' points to the frame on return from this function.
+            // Setting 'frame_number' equal to 0 will return the last frame of the image.
+            // Returns false if 'dmux' is NULL or frame 'frame_number' is not present.
+            // Call WebPDemuxReleaseIterator() when use of the iterator is complete.
+            // NOTE: 'dmux' must persist for the lifetime of 'iter'.
+            WEBP_EXTERN int WebPDemuxGetFrame(
+                const WebPDemuxer* dmux, int frame_number, WebPIterator* iter);
+        */
+        public int WebPDemuxGetFrame(Pointer dmux, int frame_number, WebPIterator iter);
+        
+        /*
+        [webp/demux.h]
+            // Sets 'iter->fragment' to point to the next ('iter->frame_num' + 1) or
+            // previous ('iter->frame_num' - 1) frame. These functions do not loop.
+            // Returns true on success, false otherwise.
+            WEBP_EXTERN int WebPDemuxNextFrame(WebPIterator* iter);
+        */
+        public int WebPDemuxNextFrame(WebPIterator iter);
+        
+        /*
+        [webp/demux.h]
+            // Releases any memory associated with 'iter'.
+            // Must be called before any subsequent calls to WebPDemuxGetChunk() on the same
+            // iter. Also, must be called before destroying the associated WebPDemuxer with
+            // WebPDemuxDelete().
+            WEBP_EXTERN void WebPDemuxReleaseIterator(WebPIterator* iter);
+        */
+        public void WebPDemuxReleaseIterator(WebPIterator iter);
+        
+        /*
+        [webp/demux.h]
+            struct WebPIterator {
+              int frame_num;
+              int num_frames;          // equivalent to WEBP_FF_FRAME_COUNT.
+              int x_offset, y_offset;  // offset relative to the canvas.
+              int width, height;       // dimensions of this frame.
+              int duration;            // display duration in milliseconds.
+              WebPMuxAnimDispose dispose_method;  // dispose method for the frame.
+              int complete;   // true if 'fragment' contains a full frame. partial images
+                              // may still be decoded with the WebP decoder.
+              WebPData fragment;  // The frame given by 'frame_num'. Note for historical
+                                  // reasons this is called a fragment.
+              int has_alpha;      // True if the frame contains transparency.
+              WebPMuxAnimBlend blend_method;  // Blend operation for the frame.
+
+              uint32_t pad[2];         // padding for later use.
+              void* private_;          // for internal use only.
+            };
+        */
+        // The padding is declared as separate fields instead of an array, since
+        // JNA doesn't cache the layout of structures containing arrays, which
+        // makes creating them fairly slow (same for the decoder config ones)
+        @Structure.FieldOrder({ "frame_num", "num_frames", "x_offset", "y_offset",
+            "width", "height", "duration", "dispose_method", "complete",
+            "fragment", "has_alpha", "blend_method", "pad0", "pad1", "private_" })
+        public static class WebPIterator extends Structure {
+            public int frame_num;
+            public int num_frames;
+            public int x_offset;
+            public int y_offset;
+            public int width;
+            public int height;
+            public int duration;
+            public int dispose_method;
+            public int complete;
+            public WebPData fragment;
+            public int has_alpha;
+            public int blend_method;
+            public int pad0;
+            public int pad1;
+            public Pointer private_;
+        }
+        
+        static final int WEBP_DECODER_ABI_VERSION = 0x0209;
+        
+        /*
+        [webp/decode.h]
+            // Internal, version-checked, entry point
+            WEBP_EXTERN int WebPInitDecoderConfigInternal(WebPDecoderConfig*, int);
+
+            // Initialize the configuration as empty. This function must always be
+            // called first, unless WebPGetFeatures() is to be called.
+            // Returns false in case of mismatched version.
+            static WEBP_INLINE int WebPInitDecoderConfig(WebPDecoderConfig* config) {
+              return WebPInitDecoderConfigInternal(config, WEBP_DECODER_ABI_VERSION);
+            }
+        */
+        public int WebPInitDecoderConfigInternal(WebPDecoderConfig config, int version);
+        
+        /*
+        [webp/decode.h]
+            // Non-incremental version. This version decodes the full data at once, taking
+            // 'config' into account. Returns decoding status (which should be VP8_STATUS_OK
+            // if the decoding was successful). Note that 'config' cannot be NULL.
+            WEBP_EXTERN VP8StatusCode WebPDecode(const uint8_t* data, size_t data_size,
+                                                 WebPDecoderConfig* config);
+        */
+        static final int VP8_STATUS_OK = 0;
+        
+        /*
+        [webp/decode.h]
+            // Internal, version-checked, entry point
+            WEBP_EXTERN VP8StatusCode WebPGetFeaturesInternal(
+                const uint8_t*, size_t, WebPBitstreamFeatures*, int);
+
+            // Retrieve features from the bitstream. The *features structure is filled
+            // with information gathered from the bitstream.
+            // Returns VP8_STATUS_OK when the features are successfully retrieved. Returns
+            // VP8_STATUS_NOT_ENOUGH_DATA when more data is needed to retrieve the
+            // features from headers. Returns error in other cases.
+        */
+        public int WebPGetFeaturesInternal(Pointer data, Size_T data_size, WebPBitstreamFeatures features, int version);
+        
+        public int WebPDecode(Pointer data, Size_T data_size, WebPDecoderConfig config);
+        
+        /*
+        [webp/decode.h]
+            // Free any memory associated with the buffer. Must always be called last.
+            // Note: doesn't free the 'buffer' structure itself.
+            WEBP_EXTERN void WebPFreeDecBuffer(WebPDecBuffer* buffer);
+        */
+        public void WebPFreeDecBuffer(WebPDecBuffer buffer);
+        
+        /*
+        [webp/decode.h]
+            // Main object storing the configuration for advanced decoding.
+            struct WebPDecoderConfig {
+              WebPBitstreamFeatures input;  // Immutable bitstream features (optional)
+              WebPDecBuffer output;         // Output buffer (can point to external mem)
+              WebPDecoderOptions options;   // Decoding options
+            };
+        */
+        @Structure.FieldOrder({ "input", "output", "options" })
+        public static class WebPDecoderConfig extends Structure {
+            public WebPBitstreamFeatures input;
+            public WebPDecBuffer output;
+            public WebPDecoderOptions options;
+        }
+        
+        /*
+        [webp/decode.h]
+            // Features gathered from the bitstream
+            struct WebPBitstreamFeatures {
+              int width;          // Width in pixels, as read from the bitstream.
+              int height;         // Height in pixels, as read from the bitstream.
+              int has_alpha;      // True if the bitstream contains an alpha channel.
+              int has_animation;  // True if the bitstream is an animation.
+              int format;         // 0 = undefined (/mixed), 1 = lossy, 2 = lossless
+
+              uint32_t pad[5];    // padding for later use
+            };
+        */
+        @Structure.FieldOrder({ "width", "height", "has_alpha", "has_animation", "format",
+            "pad0", "pad1", "pad2", "pad3", "pad4" })
+        public static class WebPBitstreamFeatures extends Structure {
+            public int width;
+            public int height;
+            public int has_alpha;
+            public int has_animation;
+            public int format;
+            public int pad0;
+            public int pad1;
+            public int pad2;
+            public int pad3;
+            public int pad4;
+        }
+        
+        static final int FORMAT_LOSSLESS = 2;
+        
+        /*
+        [webp/decode.h]
+            typedef enum WEBP_CSP_MODE {
+              MODE_RGB = 0, MODE_RGBA = 1,
+              MODE_BGR = 2, MODE_BGRA = 3,
+              MODE_ARGB = 4, MODE_RGBA_4444 = 5,
+              MODE_RGB_565 = 6,
+              // RGB-premultiplied transparent modes (alpha value is preserved)
+              MODE_rgbA = 7,
+              MODE_bgrA = 8,
+              MODE_Argb = 9,
+              MODE_rgbA_4444 = 10,
+              // YUV modes must come after RGB ones.
+              MODE_YUV = 11, MODE_YUVA = 12,  // yuv 4:2:0
+              MODE_LAST = 13
+            } WEBP_CSP_MODE;
+        */
+        static final int MODE_RGBA = 1;
+        static final int MODE_YUV = 11;
+        static final int MODE_YUVA = 12;
+        
+        /*
+        [webp/decode.h]
+            // Output buffer
+            struct WebPDecBuffer {
+              WEBP_CSP_MODE colorspace;  // Colorspace.
+              int width, height;         // Dimensions.
+              int is_external_memory;    // If non-zero, 'internal_memory' pointer is not
+                                         // used. If value is '2' or more, the external
+                                         // memory is considered 'slow' and multiple
+                                         // read/write will be avoided.
+              union {
+                WebPRGBABuffer RGBA;
+                WebPYUVABuffer YUVA;
+              } u;                       // Nameless union of buffer parameters.
+              uint32_t       pad[4];     // padding for later use
+
+              uint8_t* private_memory;   // Internally allocated memory (only when
+                                         // is_external_memory is 0). Should not be used
+                                         // externally, but accessed via the buffer union.
+            };
+        */
+        @Structure.FieldOrder({ "colorspace", "width", "height", "is_external_memory", "u",
+            "pad0", "pad1", "pad2", "pad3", "private_memory" })
+        public static class WebPDecBuffer extends Structure {
+            public int colorspace;
+            public int width;
+            public int height;
+            public int is_external_memory;
+            public WebPDecBufferUnion u;
+            public int pad0;
+            public int pad1;
+            public int pad2;
+            public int pad3;
+            public Pointer private_memory;
+        }
+        
+        public static class WebPDecBufferUnion extends Union {
+            public WebPRGBABuffer RGBA;
+            public WebPYUVABuffer YUVA;
+        }
+        
+        /*
+        [webp/decode.h]
+            struct WebPRGBABuffer {    // view as RGBA
+              uint8_t* rgba;    // pointer to RGBA samples
+              int stride;       // stride in bytes from one scanline to the next.
+              size_t size;      // total size of the *rgba buffer.
+            };
+        */
+        @Structure.FieldOrder({ "rgba", "stride", "size" })
+        public static class WebPRGBABuffer extends Structure {
+            public Pointer rgba;
+            public int stride;
+            public Size_T size;
+        }
+        
+        /*
+        [webp/decode.h]
+            struct WebPYUVABuffer {              // view as YUVA
+              uint8_t* y, *u, *v, *a;     // pointer to luma, chroma U/V, alpha samples
+              int y_stride;               // luma stride
+              int u_stride, v_stride;     // chroma strides
+              int a_stride;               // alpha stride
+              size_t y_size;              // luma plane size
+              size_t u_size, v_size;      // chroma planes size
+              size_t a_size;              // alpha-plane size
+            };
+        */
+        @Structure.FieldOrder({ "y", "u", "v", "a", "y_stride", "u_stride", "v_stride", "a_stride",
+            "y_size", "u_size", "v_size", "a_size" })
+        public static class WebPYUVABuffer extends Structure {
+            public Pointer y;
+            public Pointer u;
+            public Pointer v;
+            public Pointer a;
+            public int y_stride;
+            public int u_stride;
+            public int v_stride;
+            public int a_stride;
+            public Size_T y_size;
+            public Size_T u_size;
+            public Size_T v_size;
+            public Size_T a_size;
+        }
+        
+        /*
+        [webp/decode.h]
+            // Decoding options
+            struct WebPDecoderOptions {
+              int bypass_filtering;               // if true, skip the in-loop filtering
+              int no_fancy_upsampling;            // if true, use faster pointwise upsampler
+              int use_cropping;                   // if true, cropping is applied _first_
+              int crop_left, crop_top;            // top-left position for cropping.
+                                                  // Will be snapped to even values.
+              int crop_width, crop_height;        // dimension of the cropping area
+              int use_scaling;                    // if true, scaling is applied _afterward_
+              int scaled_width, scaled_height;    // final resolution
+              int use_threads;                    // if true, use multi-threaded decoding
+              int dithering_strength;             // dithering strength (0=Off, 100=full)
+              int flip;                           // if true, flip output vertically
+              int alpha_dithering_strength;       // alpha dithering strength in [0..100]
+
+              uint32_t pad[5];                    // padding for later use
+            };
+        */
+        @Structure.FieldOrder({ "bypass_filtering", "no_fancy_upsampling", "use_cropping",
+            "crop_left", "crop_top", "crop_width", "crop_height", "use_scaling",
+            "scaled_width", "scaled_height", "use_threads", "dithering_strength",
+            "flip", "alpha_dithering_strength", "pad0", "pad1", "pad2", "pad3", "pad4" })
+        public static class WebPDecoderOptions extends Structure {
+            public int bypass_filtering;
+            public int no_fancy_upsampling;
+            public int use_cropping;
+            public int crop_left;
+            public int crop_top;
+            public int crop_width;
+            public int crop_height;
+            public int use_scaling;
+            public int scaled_width;
+            public int scaled_height;
+            public int use_threads;
+            public int dithering_strength;
+            public int flip;
+            public int alpha_dithering_strength;
+            public int pad0;
+            public int pad1;
+            public int pad2;
+            public int pad3;
+            public int pad4;
+        }
+        
         public static class Size_T extends IntegerType {
 
             private static final long serialVersionUID = 1L;
@@ -0,0 +1,405 @@
+package webpdecoderjn;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import webpdecoderjn.WebPDecoder.DecodeOptions;
+import webpdecoderjn.WebPDecoder.WebPDecoderException;
+import webpdecoderjn.WebPDecoder.WebPImage;
+
+/**
+ * Persistent cache of decoded images in a directory, so images don't have to
+ * be decoded again after a restart. Cached images are read back using
+ * memory-mapping, without any native decoding.
+ *
+ * <p>
+ * Entries are identified by a SHA-256 hash of the image data and the options
+ * that affect the output (e.g. indexed color, frame selection), so the same
+ * image decoded with different options is stored separately. Only complete
+ * results are stored (not cancelled partial results).
+ *
+ * <p>
+ * Several instances, also in different JVMs, can use the same directory.
+ * Files are written to a temporary file first and then moved into place, so
+ * readers never see incomplete files. When the total size exceeds the
+ * maximum, the least recently used files are deleted, which is coordinated
+ * between processes through a lock file. Each instance only knows about its
+ * own writes, so it scans the directory again after writing a tenth of the
+ * maximum size, which means with several processes the maximum may
+ * temporarily be exceeded by up to a tenth for each process.
+ *
+ * @author tduva
+ */
+public class WebPDiskCache {
+
+    private static final Logger LOGGER = Logger.getLogger(WebPDiskCache.class.getName());
+
+    private static final String SUFFIX = ".wpdc";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String LOCK_FILE = "cache.lock";
+
+    /**
+     * When evicting, delete files until the total size is below this fraction
+     * of the maximum, so eviction doesn't have to run on every write.
+     */
+    private static final double EVICT_TARGET = 0.9;
+
+    /**
+     * Temp files older than this are left over from crashed writers.
+     */
+    private static final long STALE_TEMP_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final Path directory;
+    private final long maxBytes;
+
+    /**
+     * Approximate total size of the cache directory, other processes may
+     * have changed it since it was last determined.
+     */
+    private final AtomicLong size = new AtomicLong(-1);
+
+    /**
+     * Bytes written by this instance since the directory was last scanned.
+     */
+    private final AtomicLong unscanned = new AtomicLong();
+
+    /**
+     * Create a new cache.
+     *
+     * @param directory The directory to store the files in, will be created if
+     * necessary
+     * @param maxBytes The maximum total size of the cached files
+     * @throws IOException If the directory can't be created
+     */
+    public WebPDiskCache(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Get the image from the cache or decode it and store the result in the
+     * cache. Failing to read or write the cache is not an error, the image is
+     * just decoded as usual.
+     *
+     * @param rawData The raw bytes of the image
+     * @param options The decode options, may be {@code null} to use the
+     * defaults
+     * @return A decoded {@link WebPImage}
+     * @throws WebPDecoderException When the decoder encounters an issue (e.g.
+     * if it's not a valid WebP file)
+     * @throws UnsatisfiedLinkError When there was an issue loading the native
+     * libraries (note that this is an error, not an exception)
+     */
+    public WebPImage decode(byte[] rawData, DecodeOptions options) throws WebPDecoderException,
+                                                                          UnsatisfiedLinkError {
+        if (options == null) {
+            options = new DecodeOptions();
+        }
+        String key = key(rawData, options);
+        WebPImage result = get(key);
+        if (result == null) {
+            result = WebPDecoder.decode(rawData, options);
+            put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Get the image from the cache.
+     *
+     * @param rawData The raw bytes of the image
+     * @param options The decode options, may be {@code null} to use the
+     * defaults
+     * @return The cached image, or {@code null} if it isn't in the cache
+     */
+    public WebPImage get(byte[] rawData, DecodeOptions options) {
+        return get(key(rawData, options != null ? options : new DecodeOptions()));
+    }
+
+    /**
+     * Store the image in the cache, replacing any existing entry.
+     *
+     * @param rawData The raw bytes of the image
+     * @param options The decode options the image was decoded with, may be
+     * {@code null} for the defaults
+     * @param image The decoded image
+     */
+    public void put(byte[] rawData, DecodeOptions options, WebPImage image) {
+        put(key(rawData, options != null ? options : new DecodeOptions()), image);
+    }
+
+    /**
+     * The approximate total size of the cached files.
+     *
+     * @return The size in bytes
+     */
+    public long getSize() {
+        return currentSize();
+    }
+
+    /**
+     * Delete all cached files.
+     *
+     * @throws IOException If listing the directory fails
+     */
+    public void clear() throws IOException {
+        for (Path file : listFiles(SUFFIX)) {
+            deleteQuietly(file);
+        }
+        size.set(0);
+    }
+
+    //==========================
+    // Read/Write
+    //==========================
+
+    private WebPImage get(String key) {
+        Path file = directory.resolve(key + SUFFIX);
+        WebPImage result;
+        try {
+            result = FrameFile.read(file);
+        }
+        catch (NoSuchFileException ex) {
+            return null;
+        }
+        catch (WebPDecoderException | RuntimeException ex) {
+            // Invalid, truncated or old version
+            LOGGER.warning("Deleting invalid cache file " + file + ": " + ex);
+            deleteQuietly(file);
+            return null;
+        }
+        catch (IOException ex) {
+            LOGGER.warning("Error reading cache file " + file + ": " + ex);
+            return null;
+        }
+        try {
+            // Last modified time is used for LRU eviction
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+        catch (IOException ex) {
+            // Evicted by another process since reading it, the result is
+            // still valid
+        }
+        return result;
+    }
+
+    private void put(String key, WebPImage image) {
+        if (!image.complete) {
+            return;
+        }
+        Path file = directory.resolve(key + SUFFIX);
+        Path temp = null;
+        try {
+            // Determine before adding the file, so it isn't counted twice
+            currentSize();
+            temp = Files.createTempFile(directory, key, TEMP_SUFFIX);
+            FrameFile.write(image, temp);
+            long fileSize = Files.size(temp);
+            if (fileSize > maxBytes) {
+                // Would be evicted right away anyway
+                return;
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temp = null;
+            long estimate = size.addAndGet(fileSize);
+            long written = unscanned.addAndGet(fileSize);
+            // Other processes may have added files in the meantime
+            if (estimate > maxBytes || written > maxBytes * (1 - EVICT_TARGET)) {
+                evict();
+            }
+        }
+        catch (IOException | RuntimeException ex) {
+            // Another process may have written the same file at the same time,
+            // the disk may be full or the file too large, in any case the
+            // decoded image is still returned
+            LOGGER.warning("Error writing cache file " + file + ": " + ex);
+        }
+        finally {
+            if (temp != null) {
+                deleteQuietly(temp);
+            }
+        }
+    }
+
+    //==========================
+    // Eviction
+    //==========================
+
+    private long currentSize() {
+        long result = size.get();
+        if (result < 0) {
+            result = 0;
+            try {
+                for (Path file : listFiles(SUFFIX)) {
+                    result += sizeOf(file);
+                }
+            }
+            catch (IOException ex) {
+                LOGGER.warning("Error determining cache size: " + ex);
+            }
+            size.set(result);
+        }
+        return result;
+    }
+
+    /**
+     * Scan the directory and if the total size exceeds the maximum, delete
+     * the least recently used files until it is below the target. Also
+     * deletes stale temp files. Only one process evicts at a time, others skip
+     * it.
+     */
+    private void evict() {
+        try (FileChannel lockChannel = FileChannel.open(directory.resolve(LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock;
+            try {
+                lock = lockChannel.tryLock();
+            }
+            catch (OverlappingFileLockException ex) {
+                // Another thread in this JVM is already evicting
+                return;
+            }
+            if (lock == null) {
+                // Another process is already evicting
+                return;
+            }
+            try {
+                long staleTime = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+                for (Path file : listFiles(TEMP_SUFFIX)) {
+                    try {
+                        if (Files.getLastModifiedTime(file).toMillis() < staleTime) {
+                            deleteQuietly(file);
+                        }
+                    }
+                    catch (IOException ex) {
+                        // Moved or deleted in the meantime
+                    }
+                }
+                List<Entry> entries = new ArrayList<>();
+                long total = 0;
+                for (Path file : listFiles(SUFFIX)) {
+                    try {
+                        BasicFileAttributes attr = Files.readAttributes(file, BasicFileAttributes.class);
+                        entries.add(new Entry(file, attr.size(), attr.lastModifiedTime().toMillis()));
+                        total += attr.size();
+                    }
+                    catch (NoSuchFileException ex) {
+                        // Deleted in the meantime
+                    }
+                }
+                entries.sort(Comparator.comparingLong(e -> e.lastModified));
+                long target = total > maxBytes ? (long) (maxBytes * EVICT_TARGET) : maxBytes;
+                for (Entry entry : entries) {
+                    if (total <= target) {
+                        break;
+                    }
+                    // Files that are mapped by a reader can still be deleted
+                    // on Unix, the reader keeps using the old data
+                    if (deleteQuietly(entry.file)) {
+                        total -= entry.size;
+                    }
+                }
+                size.set(total);
+                unscanned.set(0);
+            }
+            finally {
+                lock.release();
+            }
+        }
+        catch (IOException ex) {
+            LOGGER.warning("Error evicting cache files: " + ex);
+        }
+    }
+
+    //==========================
+    // Helpers
+    //==========================
+
+    private List<Path> listFiles(String suffix) throws IOException {
+        List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + suffix)) {
+            for (Path file : stream) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        }
+        catch (IOException ex) {
+            return 0;
+        }
+    }
+
+    private static boolean deleteQuietly(Path file) {
+        try {
+            return Files.deleteIfExists(file);
+        }
+        catch (IOException ex) {
+            LOGGER.log(Level.FINE, "Error deleting " + file, ex);
+            return false;
+        }
+    }
+
+    private static String key(byte[] rawData, DecodeOptions options) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(rawData);
+            digest.update(options.getOutputKey().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) FrameFile.VERSION);
+            StringBuilder b = new StringBuilder();
+            for (byte value : digest.digest()) {
+                b.append(String.format("%02x", value & 0xFF));
+            }
+            return b.toString();
+        }
+        catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static class Entry {
+
+        public final Path file;
+        public final long size;
+        public final long lastModified;
+
+        Entry(Path file, long size, long lastModified) {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+    }
+
+}
@@ -0,0 +1,588 @@
+package webpdecoderjn;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import com.sun.jna.Native;
+import webpdecoderjn.WebPDecoder.DecodeOptions;
+import webpdecoderjn.WebPDecoder.WebPDecoderCancelledException;
+import webpdecoderjn.WebPDecoder.WebPDecoderException;
+import webpdecoderjn.WebPDecoder.WebPImage;
+
+/**
+ * Decodes images in separate worker processes (JVMs), so that a crash in the
+ * native library only takes down the worker and the allocations made while
+ * decoding (native memory and temporary objects) don't affect this process.
+ * The decoded frames are copied from the result file into images on the heap
+ * of this process though, so the heap still has to hold the result, just like
+ * with {@link WebPDecoder#decode(byte[], DecodeOptions)}.
+ *
+ * <p>
+ * Each worker decodes one image at a time, so up to {@code size} images can
+ * be decoded at the same time, further calls wait for a worker to become
+ * available. Workers are started when needed and then reused. The image data
+ * and options are sent through the stdin pipe of the worker, the decoded
+ * frames are returned through a memory-mapped file in a temp directory (see
+ * {@link FrameFile}).
+ *
+ * <p>
+ * A worker is replaced when it crashed, took longer than the timeout (it is
+ * killed then) or has decoded the set maximum number of images. A decode
+ * that crashes the worker is not retried, since it would likely crash again.
+ *
+ * <p>
+ * Workers are started with the same Java as this process. Their classpath
+ * consists of the locations this library, JNA and the native library were
+ * loaded from, so it also works when they are not on the system classpath
+ * (e.g. loaded by an application server or plugin class loader), as long as
+ * they are loaded from JAR files or directories. Classes from the runtime
+ * image (jlink) are available to the workers anyway. Of the
+ * {@link DecodeOptions} the cancellation check and executor are not
+ * supported.
+ *
+ * @author tduva
+ */
+public class WebPWorkerPool implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(WebPWorkerPool.class.getName());
+
+    private final int size;
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<Worker> idle = new LinkedBlockingDeque<>();
+    private final Set<Worker> busy = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService watchdog;
+    private final Path tempDirectory;
+    private final AtomicInteger startedWorkers = new AtomicInteger();
+
+    private volatile long timeout = 30_000;
+    private volatile int maxDecodesPerWorker = 1000;
+    private volatile List<String> jvmArgs = Collections.emptyList();
+    private volatile boolean closed;
+
+    /**
+     * Create a new pool. No workers are started until the first decode.
+     *
+     * @param size The maximum number of worker processes
+     * @throws IOException If creating the temp directory fails
+     */
+    public WebPWorkerPool(int size) throws IOException {
+        if (size < 1) {
+            throw new IllegalArgumentException("Invalid size");
+        }
+        this.size = size;
+        this.permits = new Semaphore(size, true);
+        this.tempDirectory = Files.createTempDirectory("webpworker");
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "WebPWorkerPool-Watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Kill a worker that takes longer than this to decode an image (or to
+     * start). The decode then throws a {@link WebPDecoderCancelledException}.
+     *
+     * @param timeout The timeout in milliseconds, 0 for no timeout (default
+     * is 30 seconds)
+     * @return This object
+     */
+    public WebPWorkerPool setTimeout(long timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * Replace a worker with a new process after it has decoded this many
+     * images, which limits the effect of leaks or fragmentation in the worker.
+     *
+     * @param maxDecodesPerWorker The number of decodes, 0 for no limit
+     * (default is 1000)
+     * @return This object
+     */
+    public WebPWorkerPool setMaxDecodesPerWorker(int maxDecodesPerWorker) {
+        this.maxDecodesPerWorker = maxDecodesPerWorker;
+        return this;
+    }
+
+    /**
+     * Additional arguments for the worker JVMs, for example {@code -Xmx256m}
+     * to limit the heap. Only affects workers started afterwards.
+     *
+     * @param jvmArgs The arguments
+     * @return This object
+     */
+    public WebPWorkerPool setJvmArgs(List<String> jvmArgs) {
+        this.jvmArgs = new ArrayList<>(jvmArgs);
+        return this;
+    }
+
+    /**
+     * Decode the image in a worker process.
+     *
+     * @param rawData The raw bytes of the image
+     * @param options The options, may be {@code null} to use the defaults
+     * @return A decoded {@link WebPImage}
+     * @throws WebPDecoderException When the decoder encounters an issue (e.g.
+     * if it's not a valid WebP file) or the worker crashed or couldn't be
+     * started
+     * @throws WebPDecoderCancelledException When the worker took longer than
+     * the timeout, the time limit of the options was exceeded or the thread
+     * was interrupted while waiting for a worker
+     * @throws UnsatisfiedLinkError When there was an issue loading the native
+     * libraries in the worker (note that this is an error, not an exception)
+     */
+    public WebPImage decode(byte[] rawData, DecodeOptions options) throws WebPDecoderException,
+                                                                          UnsatisfiedLinkError {
+        if (options == null) {
+            options = new DecodeOptions();
+        }
+        try {
+            permits.acquire();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new WebPDecoderCancelledException("Interrupted while waiting for worker");
+        }
+        try {
+            if (closed) {
+                throw new WebPDecoderException("Worker pool closed");
+            }
+            Worker worker = idle.pollFirst();
+            while (worker != null && !worker.process.isAlive()) {
+                // Exited while idle (e.g. killed from outside)
+                worker.stop();
+                worker = idle.pollFirst();
+            }
+            if (worker == null) {
+                worker = startWorker();
+            }
+            else {
+                busy.add(worker);
+            }
+            try {
+                return worker.decode(rawData, options);
+            }
+            finally {
+                busy.remove(worker);
+                int max = maxDecodesPerWorker;
+                if (worker.alive && !closed && (max <= 0 || worker.decodes < max)) {
+                    // Most recently used first, so the JIT of busy workers
+                    // stays warm
+                    idle.addFirst(worker);
+                }
+                else {
+                    worker.stop();
+                }
+            }
+        }
+        finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * The number of worker processes that have been started so far,
+     * including ones that have been replaced.
+     *
+     * @return The number of started workers
+     */
+    public int getStartedWorkers() {
+        return startedWorkers.get();
+    }
+
+    /**
+     * The maximum number of worker processes.
+     *
+     * @return The size of the pool
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Wait for decodes that are currently running to finish, then stop all
+     * workers and delete the temp directory. Decodes still running after the
+     * timeout (or right away if no timeout is set) are cancelled by killing
+     * their workers and throw a {@link WebPDecoderCancelledException}.
+     * Decodes that are started or waiting for a worker afterwards throw a
+     * {@link WebPDecoderException}.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        // Decodes in progress still use the watchdog and temp directory,
+        // waiting ones see closed when they get a permit
+        boolean interrupted = false;
+        boolean done;
+        try {
+            done = permits.tryAcquire(size, Math.max(timeout, 0), TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ex) {
+            interrupted = true;
+            done = false;
+        }
+        if (!done) {
+            for (Worker worker : busy) {
+                worker.cancel();
+            }
+            permits.acquireUninterruptibly(size);
+        }
+        permits.release(size);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        Worker worker;
+        while ((worker = idle.poll()) != null) {
+            worker.stop();
+        }
+        watchdog.shutdownNow();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(tempDirectory)) {
+            for (Path file : stream) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(tempDirectory);
+        }
+        catch (IOException ex) {
+            LOGGER.warning("Failed deleting temp directory: " + ex);
+        }
+    }
+
+    private Worker startWorker() throws WebPDecoderException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        String libraryPath = System.getProperty("jna.library.path");
+        if (libraryPath != null) {
+            command.add("-Djna.library.path=" + libraryPath);
+        }
+        command.add("-cp");
+        command.add(getClassPath());
+        command.add(DecodeWorker.class.getName());
+        ProcessBuilder builder = new ProcessBuilder(command);
+        // Logging of the worker
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Worker worker;
+        try {
+            worker = new Worker(builder.start());
+        }
+        catch (IOException ex) {
+            throw new WebPDecoderException("Failed starting worker: " + ex);
+        }
+        startedWorkers.incrementAndGet();
+        // May be cancelled by close() while starting
+        busy.add(worker);
+        try {
+            worker.awaitReady();
+        }
+        catch (WebPDecoderException ex) {
+            busy.remove(worker);
+            throw ex;
+        }
+        return worker;
+    }
+
+    /**
+     * The classpath for the workers, based on where the classes of this
+     * library and JNA and the native library were actually loaded from, which
+     * may not be on the classpath of this process.
+     * 
+     * @return The classpath, or the classpath of this process if a location
+     * can't be determined
+     */
+    static String getClassPath() {
+        Set<String> paths = new LinkedHashSet<>();
+        // Resources are looked up instead of the code source, since classes
+        // and resources may be in separate directories during development
+        if (!addLocation(paths, WebPDecoder.class, WebPDecoder.class.getName().replace('.', '/') + ".class")
+                || !addLocation(paths, Native.class, Native.class.getName().replace('.', '/') + ".class")) {
+            return System.getProperty("java.class.path");
+        }
+        // Not required if loaded from the library path instead
+        addLocation(paths, WebPDecoder.class, WebPDecoder.getLibResourceName());
+        return String.join(File.pathSeparator, paths);
+    }
+
+    /**
+     * Add the JAR file or directory the resource is loaded from.
+     * 
+     * @param paths Where to add the location to
+     * @param c The class whose class loader is used
+     * @param name The name of the resource
+     * @return {@code false} if the resource was not found or the location is
+     * not a local JAR file or directory
+     */
+    private static boolean addLocation(Set<String> paths, Class<?> c, String name) {
+        URL url = c.getClassLoader() != null
+                ? c.getClassLoader().getResource(name)
+                : ClassLoader.getSystemResource(name);
+        if (url == null) {
+            return false;
+        }
+        if (url.getProtocol().equals("jrt")) {
+            // In the runtime image, which the worker uses as well
+            return true;
+        }
+        Path root = null;
+        try {
+            if (url.getProtocol().equals("jar")) {
+                // jar:file:/path/lib.jar!/name
+                String file = url.getFile();
+                int separator = file.indexOf("!/");
+                if (separator != -1 && file.startsWith("file:")) {
+                    root = Paths.get(new URL(file.substring(0, separator)).toURI());
+                }
+            }
+            else if (url.getProtocol().equals("file")) {
+                root = Paths.get(url.toURI());
+                for (int i = 0; i < name.split("/").length && root != null; i++) {
+                    root = root.getParent();
+                }
+            }
+        }
+        catch (MalformedURLException | URISyntaxException | IllegalArgumentException
+                | FileSystemNotFoundException ex) {
+            // Handled below
+        }
+        if (root == null) {
+            LOGGER.warning("Unknown location of " + name + " (" + url + ")");
+            return false;
+        }
+        paths.add(root.toString());
+        return true;
+    }
+
+    /**
+     * A worker process, only used by one thread at a time.
+     */
+    private class Worker {
+
+        private final Process process;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+
+        private volatile boolean timedOut;
+        private volatile boolean cancelled;
+        private boolean alive = true;
+        private int decodes;
+
+        Worker(Process process) {
+            this.process = process;
+            this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+
+        public void awaitReady() throws WebPDecoderException {
+            ScheduledFuture<?> kill = null;
+            try {
+                kill = scheduleKill();
+                if (in.readInt() != DecodeWorker.READY) {
+                    throw new IOException("Invalid response");
+                }
+            }
+            catch (WebPDecoderException ex) {
+                failed();
+                throw ex;
+            }
+            catch (IOException ex) {
+                failed();
+                if (cancelled) {
+                    throw new WebPDecoderCancelledException("Worker pool closed");
+                }
+                throw new WebPDecoderException("Worker didn't start: " + exitReason(ex));
+            }
+            finally {
+                cancelKill(kill);
+            }
+        }
+
+        public WebPImage decode(byte[] rawData, DecodeOptions options) throws WebPDecoderException {
+            decodes++;
+            Path file;
+            try {
+                file = Files.createTempFile(tempDirectory, "result", ".wpdc");
+            }
+            catch (IOException ex) {
+                // Not an issue with the worker, so keep it
+                throw new WebPDecoderException("Failed creating result file: " + ex);
+            }
+            try {
+                int status = request(rawData, options, file);
+                if (status == DecodeWorker.STATUS_OK) {
+                    try {
+                        return FrameFile.read(file);
+                    }
+                    catch (WebPDecoderException ex) {
+                        throw ex;
+                    }
+                    catch (IOException ex) {
+                        // The worker has responded, so it's still fine
+                        throw new WebPDecoderException("Failed reading result file: " + ex);
+                    }
+                }
+                String message = readMessage();
+                switch (status) {
+                    case DecodeWorker.STATUS_CANCELLED:
+                        throw new WebPDecoderCancelledException(message);
+                    case DecodeWorker.STATUS_LINK_ERROR:
+                        throw new UnsatisfiedLinkError(message);
+                    default:
+                        throw new WebPDecoderException(message);
+                }
+            }
+            finally {
+                if (timedOut || cancelled) {
+                    // Killed just after responding
+                    alive = false;
+                }
+                try {
+                    Files.deleteIfExists(file);
+                }
+                catch (IOException ex) {
+                    // May still be mapped on Windows, deleted on close
+                }
+            }
+        }
+
+        /**
+         * Send the decode request and wait for the status. Any error in the
+         * communication means the worker is gone or unusable.
+         */
+        private int request(byte[] rawData, DecodeOptions options, Path file) throws WebPDecoderException {
+            ScheduledFuture<?> kill = scheduleKill();
+            try {
+                out.writeInt(DecodeWorker.COMMAND_DECODE);
+                DecodeWorker.writeOptions(out, options);
+                out.writeUTF(file.toAbsolutePath().toString());
+                out.writeInt(rawData.length);
+                out.write(rawData);
+                out.flush();
+                return in.readInt();
+            }
+            catch (IOException ex) {
+                throw workerFailed(ex);
+            }
+            finally {
+                cancelKill(kill);
+            }
+        }
+
+        private String readMessage() throws WebPDecoderException {
+            try {
+                return in.readUTF();
+            }
+            catch (IOException ex) {
+                throw workerFailed(ex);
+            }
+        }
+
+        private WebPDecoderException workerFailed(IOException ex) {
+            failed();
+            if (cancelled) {
+                return new WebPDecoderCancelledException("Worker pool closed");
+            }
+            if (timedOut) {
+                return new WebPDecoderCancelledException(String.format(
+                        "Worker killed after exceeding the timeout (%d ms)", timeout));
+            }
+            return new WebPDecoderException("Worker failed: " + exitReason(ex));
+        }
+
+        private ScheduledFuture<?> scheduleKill() throws WebPDecoderException {
+            long currentTimeout = timeout;
+            if (currentTimeout <= 0) {
+                return null;
+            }
+            try {
+                return watchdog.schedule(() -> {
+                    timedOut = true;
+                    process.destroyForcibly();
+                }, currentTimeout, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException ex) {
+                // Watchdog shut down, so the timeout couldn't be enforced
+                throw new WebPDecoderException("Worker pool closed");
+            }
+        }
+
+        private void cancelKill(ScheduledFuture<?> kill) {
+            if (kill != null) {
+                kill.cancel(false);
+            }
+        }
+
+        /**
+         * Kill the worker because the pool is closed.
+         */
+        public void cancel() {
+            cancelled = true;
+            process.destroyForcibly();
+        }
+
+        private void failed() {
+            alive = false;
+            process.destroyForcibly();
+        }
+
+        private String exitReason(IOException ex) {
+            try {
+                if (process.waitFor(1, TimeUnit.SECONDS)) {
+                    return "exited with code " + process.exitValue();
+                }
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            return String.valueOf(ex);
+        }
+
+        /**
+         * Closing stdin lets the worker exit, kill it if it doesn't.
+         */
+        public void stop() {
+            alive = false;
+            try {
+                out.close();
+                if (!process.waitFor(2, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            }
+            catch (IOException ex) {
+                process.destroyForcibly();
+            }
+            catch (InterruptedException ex) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+    }
+
+}
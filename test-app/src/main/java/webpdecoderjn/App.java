@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.logging.Logger;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
@@ -47,6 +48,15 @@ public class App {
         // Some servers may reject some default Java user agents
         System.setProperty("http.agent", "WebP Decoder Test");
         LOGGER.info(Logging.systemInfo());
+        if (args.length > 0 && args[0].equals("soak")) {
+            System.exit(soakTest(Arrays.copyOfRange(args, 1, args.length)) ? 0 : 1);
+        }
+        if (args.length > 0 && args[0].equals("bench")) {
+            System.exit(benchmark(Arrays.copyOfRange(args, 1, args.length)) ? 0 : 1);
+        }
+        if (args.length > 0 && args[0].equals("compositor")) {
+            System.exit(compositorCheck(Arrays.copyOfRange(args, 1, args.length)) ? 0 : 1);
+        }
         String url = null;
         if (args.length > 0) {
             url = args[0];
@@ -58,6 +68,64 @@ public class App {
         guiTest(url, reps);
     }
     
+    /**
+     * Run the {@link Soak} test without GUI.
+     * 
+     * @param args The arguments for the soak test
+     * @return {@code true} if no issues were found
+     */
+    private static boolean soakTest(String[] args) {
+        try {
+            WebPDecoder.init(true);
+            WebPDecoder.testEx();
+            return Soak.run(args);
+        }
+        catch (Exception | UnsatisfiedLinkError ex) {
+            LOGGER.warning("Soak test failed: "+ex);
+            return false;
+        }
+    }
+    
+    /**
+     * Run the {@link Bench} benchmark without GUI.
+     * 
+     * @param args The arguments for the benchmark
+     * @return {@code true} if all images were decoded successfully
+     */
+    private static boolean benchmark(String[] args) {
+        try {
+            WebPDecoder.init(true);
+            WebPDecoder.testEx();
+            return Bench.run(args);
+        }
+        catch (IllegalArgumentException ex) {
+            LOGGER.warning("Invalid arguments: "+ex.getMessage());
+            return false;
+        }
+        catch (Exception | UnsatisfiedLinkError ex) {
+            LOGGER.warning("Benchmark failed: "+ex);
+            return false;
+        }
+    }
+    
+    /**
+     * Run the {@link CompositorCheck} without GUI.
+     * 
+     * @param args The arguments for the check
+     * @return {@code true} if all frames matched
+     */
+    private static boolean compositorCheck(String[] args) {
+        try {
+            WebPDecoder.init(true);
+            WebPDecoder.testEx();
+            return CompositorCheck.run(args);
+        }
+        catch (Exception | UnsatisfiedLinkError ex) {
+            LOGGER.warning("Compositor check failed: "+ex);
+            return false;
+        }
+    }
+    
     private static void guiTest(String url, int reps) {
         SwingUtilities.invokeLater(() -> {
             //--------------------------
@@ -202,7 +270,7 @@ public class App {
         return new ImageResult(image, duration);
     }
     
-    private static byte[] getBytesFromLine(String line) throws IOException {
+    static byte[] getBytesFromLine(String line) throws IOException {
         URL url;
         line = line.replace("\"", "");
         if (line.startsWith("http")) {
@@ -0,0 +1,422 @@
+package webpdecoderjn;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import webpdecoderjn.WebPDecoder.DecodeOptions;
+import webpdecoderjn.WebPDecoder.DecodeQuality;
+import webpdecoderjn.WebPDecoder.WebPImage;
+
+/**
+ * Headless benchmark that decodes all WebP images in a directory or listed in
+ * a manifest file (one path or URL per line) and reports throughput, latency
+ * and memory usage.
+ *
+ * <pre>
+ * bench [--threads n] [--warmup n] [--iterations n] [--quality fast|default|high]
+ *       [--path auto|frames|parallel] [--workers n] [--format text|csv|json] [--out file]
+ *       &lt;dir|manifest&gt;
+ * </pre>
+ *
+ * <p>
+ * Each iteration decodes every image once, the warmup iterations are not
+ * included in the results. The peak native memory is based on the resident
+ * set size of the process, which is only available on Linux. With
+ * {@code --workers} the images are decoded in a {@link WebPWorkerPool} with
+ * the given number of worker processes (the memory stats then only include
+ * this process).
+ *
+ * <p>
+ * Still images with a quality other than the default are decoded with a
+ * single native decode instead of the animation decoder, and for animations
+ * the high quality decodes the frames individually and composes them in Java,
+ * so comparing qualities also compares decode paths. With
+ * {@code --path frames} animations are decoded that way for every quality,
+ * with the frames decoded on the calling thread, so only the quality
+ * differs. {@code --path parallel} decodes the frames of animations in
+ * parallel on {@link ForkJoinPool#commonPool()} instead, to measure what
+ * {@link DecodeOptions#setExecutor(java.util.concurrent.Executor)} gains
+ * over the other paths. Both require a native library that supports
+ * decoding individual frames and can't be used with {@code --workers}.
+ *
+ * @author tduva
+ */
+public class Bench {
+
+    private static final Logger LOGGER = Logger.getLogger(Bench.class.getName());
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int warmup = 2;
+    private int iterations = 10;
+    private DecodeQuality quality = DecodeQuality.DEFAULT;
+    private String path = "auto";
+    private int workers;
+    private String format = "text";
+    private Path out;
+    private String source;
+
+    private final List<Input> inputs = new ArrayList<>();
+
+    /**
+     * Run the benchmark with the given arguments.
+     *
+     * @param args The arguments (see class description)
+     * @return {@code true} if all decodes were successful
+     * @throws IOException If loading the input files or writing the output
+     * fails
+     */
+    public static boolean run(String[] args) throws IOException {
+        Bench bench = new Bench();
+        bench.parseArgs(args);
+        return bench.run();
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--")) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    case "--warmup":
+                        warmup = Integer.parseInt(value);
+                        break;
+                    case "--iterations":
+                        iterations = Integer.parseInt(value);
+                        break;
+                    case "--quality":
+                        quality = DecodeQuality.valueOf(value.toUpperCase(Locale.ROOT));
+                        break;
+                    case "--path":
+                        if (!value.equals("auto") && !value.equals("frames") && !value.equals("parallel")) {
+                            throw new IllegalArgumentException("Invalid path " + value);
+                        }
+                        path = value;
+                        break;
+                    case "--workers":
+                        workers = Integer.parseInt(value);
+                        break;
+                    case "--format":
+                        format = value;
+                        break;
+                    case "--out":
+                        out = Paths.get(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            else {
+                source = arg;
+            }
+        }
+        if (source == null) {
+            throw new IllegalArgumentException("No directory or manifest given");
+        }
+        if (threads < 1 || iterations < 1 || warmup < 0 || workers < 0) {
+            throw new IllegalArgumentException("Invalid threads/iterations/warmup/workers");
+        }
+        if (!path.equals("auto") && workers > 0) {
+            // The executor can't be transferred to the workers
+            throw new IllegalArgumentException("--path " + path + " can't be used with --workers");
+        }
+    }
+
+    public boolean run() throws IOException {
+        loadInputs();
+        if (inputs.isEmpty()) {
+            LOGGER.warning("No images found in " + source);
+            return false;
+        }
+        if (!path.equals("auto") && !WebPDecoder.isFrameDecodingSupported()) {
+            LOGGER.warning("Native library doesn't support decoding individual frames");
+            return false;
+        }
+        LOGGER.info(String.format("Bench: %d images, %d threads, %d warmup, %d iterations, %s quality, %s path",
+                inputs.size(), threads, warmup, iterations, quality, path));
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        WebPWorkerPool pool = workers > 0 ? new WebPWorkerPool(workers) : null;
+        try {
+            if (warmup > 0) {
+                runIterations(executor, pool, warmup, null);
+            }
+            Memory.usedHeapAfterGc();
+            Sampler sampler = new Sampler();
+            sampler.start();
+            long[] latencies = new long[inputs.size() * iterations];
+            long start = System.nanoTime();
+            Totals totals = runIterations(executor, pool, iterations, latencies);
+            long duration = System.nanoTime() - start;
+            sampler.finish();
+            output(createResult(totals, latencies, duration, sampler));
+            return totals.errors.get() == 0;
+        }
+        finally {
+            executor.shutdown();
+            if (pool != null) {
+                pool.close();
+            }
+        }
+    }
+
+    private void loadInputs() throws IOException {
+        Path path = Paths.get(source);
+        List<String> lines;
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.walk(path)) {
+                lines = files
+                        .filter(p -> p.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".webp"))
+                        .filter(Files::isRegularFile)
+                        .sorted()
+                        .map(Path::toString)
+                        .collect(Collectors.toList());
+            }
+        }
+        else {
+            lines = Files.readAllLines(path, StandardCharsets.UTF_8).stream()
+                    .map(String::trim)
+                    .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                    .collect(Collectors.toList());
+        }
+        for (String line : lines) {
+            inputs.add(new Input(line, App.getBytesFromLine(line)));
+        }
+    }
+
+    private Totals runIterations(ExecutorService executor, WebPWorkerPool pool, int count, long[] latencies) {
+        Totals totals = new Totals();
+        DecodeOptions options = new DecodeOptions().setQuality(quality);
+        if (path.equals("frames")) {
+            // Any executor uses the frame path, this one runs tasks right away
+            options.setExecutor(Runnable::run);
+        }
+        else if (path.equals("parallel")) {
+            options.setExecutor(ForkJoinPool.commonPool());
+        }
+        AtomicInteger latencyIndex = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            for (Input input : inputs) {
+                futures.add(executor.submit(() -> {
+                    long start = System.nanoTime();
+                    try {
+                        WebPImage image = pool != null
+                                ? pool.decode(input.data, options)
+                                : WebPDecoder.decode(input.data, options);
+                        long duration = System.nanoTime() - start;
+                        if (latencies != null) {
+                            latencies[latencyIndex.getAndIncrement()] = duration;
+                        }
+                        totals.bytes.addAndGet(input.data.length);
+                        totals.pixels.addAndGet((long) image.canvasWidth * image.canvasHeight * image.frames.size());
+                        totals.decodes.incrementAndGet();
+                    }
+                    catch (IOException | RuntimeException ex) {
+                        if (totals.errors.getAndIncrement() == 0) {
+                            LOGGER.warning("Error decoding " + input.name + ": " + ex);
+                        }
+                    }
+                }));
+            }
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            }
+            catch (Exception ex) {
+                totals.errors.incrementAndGet();
+            }
+        }
+        return totals;
+    }
+
+    private Map<String, Object> createResult(Totals totals, long[] latencies, long duration, Sampler sampler) {
+        long[] sorted = Arrays.copyOf(latencies, (int) totals.decodes.get());
+        Arrays.sort(sorted);
+        double seconds = duration / 1_000_000_000.0;
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("java", System.getProperty("java.version"));
+        result.put("os", System.getProperty("os.name"));
+        result.put("arch", WebPDecoder.getArch());
+        result.put("cpus", Runtime.getRuntime().availableProcessors());
+        result.put("images", inputs.size());
+        result.put("threads", threads);
+        result.put("iterations", iterations);
+        result.put("quality", quality.toString().toLowerCase(Locale.ROOT));
+        result.put("path", path);
+        result.put("workers", workers);
+        result.put("decodes", totals.decodes.get());
+        result.put("errors", totals.errors.get());
+        result.put("seconds", seconds);
+        result.put("images_per_s", totals.decodes.get() / seconds);
+        result.put("mb_per_s", totals.bytes.get() / 1024.0 / 1024.0 / seconds);
+        result.put("mpixel_per_s", totals.pixels.get() / 1_000_000.0 / seconds);
+        result.put("p50_ms", percentile(sorted, 50));
+        result.put("p95_ms", percentile(sorted, 95));
+        result.put("p99_ms", percentile(sorted, 99));
+        result.put("peak_heap_mb", sampler.peakHeap() / 1024.0 / 1024.0);
+        result.put("peak_rss_mb", sampler.peakRss < 0 ? -1 : sampler.peakRss / 1024.0 / 1024.0);
+        return result;
+    }
+
+    private static double percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1_000_000.0;
+    }
+
+    private void output(Map<String, Object> result) throws IOException {
+        String text;
+        switch (format) {
+            case "csv":
+                text = String.join(",", result.keySet()) + "\n"
+                        + result.values().stream().map(Bench::formatValue).collect(Collectors.joining(",")) + "\n";
+                break;
+            case "json":
+                text = result.entrySet().stream()
+                        .map(e -> {
+                            String value = formatValue(e.getValue());
+                            if (e.getValue() instanceof String) {
+                                value = "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+                            }
+                            return "  \"" + e.getKey() + "\": " + value;
+                        })
+                        .collect(Collectors.joining(",\n", "{\n", "\n}\n"));
+                break;
+            default:
+                text = result.entrySet().stream()
+                        .map(e -> String.format("%-14s %s", e.getKey(), formatValue(e.getValue())))
+                        .collect(Collectors.joining("\n", "", "\n"));
+        }
+        if (out != null) {
+            Files.write(out, text.getBytes(StandardCharsets.UTF_8));
+            LOGGER.info("Bench: results written to " + out);
+        }
+        else {
+            System.out.print(text);
+        }
+    }
+
+    private static String formatValue(Object value) {
+        if (value instanceof Double) {
+            return String.format(Locale.ROOT, "%.3f", (Double) value);
+        }
+        return String.valueOf(value);
+    }
+
+    private static class Input {
+
+        public final String name;
+        public final byte[] data;
+
+        Input(String name, byte[] data) {
+            this.name = name;
+            this.data = data;
+        }
+
+    }
+
+    private static class Totals {
+
+        public final AtomicLong decodes = new AtomicLong();
+        public final AtomicLong errors = new AtomicLong();
+        public final AtomicLong bytes = new AtomicLong();
+        public final AtomicLong pixels = new AtomicLong();
+
+    }
+
+    /**
+     * Tracks the peak memory usage while the benchmark is running. The heap
+     * peak is taken from the memory pools, the RSS is sampled periodically.
+     */
+    private static class Sampler extends Thread {
+
+        private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        private volatile boolean running = true;
+        private long peakRss = -1;
+
+        Sampler() {
+            super("Bench-Sampler");
+            setDaemon(true);
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    pool.resetPeakUsage();
+                    heapPools.add(pool);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                sample();
+                try {
+                    Thread.sleep(20);
+                }
+                catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+
+        private void sample() {
+            peakRss = Math.max(peakRss, Memory.residentSetSize());
+        }
+
+        public void finish() {
+            running = false;
+            try {
+                join(TimeUnit.SECONDS.toMillis(1));
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            sample();
+        }
+
+        /**
+         * Sum of the pool peaks, which may be slightly more than the actual
+         * peak since the pools may not have peaked at the same time.
+         *
+         * @return The peak heap usage in bytes
+         */
+        public long peakHeap() {
+            long result = 0;
+            for (MemoryPoolMXBean pool : heapPools) {
+                result += pool.getPeakUsage().getUsed();
+            }
+            return result;
+        }
+
+    }
+
+}
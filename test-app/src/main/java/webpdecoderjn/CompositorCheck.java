@@ -0,0 +1,185 @@
+package webpdecoderjn;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+import webpdecoderjn.WebPDecoder.DecodeOptions;
+import webpdecoderjn.WebPDecoder.WebPDecoderException;
+import webpdecoderjn.WebPDecoder.WebPImage;
+import webpdecoderjn.WebPDecoder.WebPImageFrame;
+
+/**
+ * Checks that decoding the frames individually and composing them in Java
+ * ({@link AnimationCompositor}, used with an executor, quality or sizes)
+ * gives exactly the same frames as the libwebp animation decoder.
+ *
+ * <p>
+ * Each image is decoded with the animation decoder as reference, then through
+ * the compositor (on the calling thread and in parallel) in full, with a
+ * frame limit and for every single frame index (which starts at the previous
+ * key frame). Pixels, timestamps, delays and the image metadata must match.
+ *
+ * <p>
+ * By default the animations in {@code /compositor/} are checked, which were
+ * generated to cover the composition rules:
+ * <ul>
+ * <li>{@code dispose-blend.webp} - every combination of dispose (none,
+ * background) and blend (alpha blending, no blending), with and without
+ * alpha, lossy and lossless frames</li>
+ * <li>{@code keyframes.webp} - frames that are key frames (full canvas
+ * without alpha, full canvas without blending, following a full canvas frame
+ * disposed to background) and frames that are not (following a partial
+ * dispose to background, full canvas frame with alpha and blending)</li>
+ * <li>{@code edges.webp} - odd canvas size, frames touching the canvas edges
+ * and single pixel frames</li>
+ * </ul>
+ *
+ * <pre>
+ * compositor [file..]
+ * </pre>
+ *
+ * @author tduva
+ */
+public class CompositorCheck {
+
+    private static final Logger LOGGER = Logger.getLogger(CompositorCheck.class.getName());
+
+    private static final String[] FIXTURES = {
+        "/compositor/dispose-blend.webp",
+        "/compositor/keyframes.webp",
+        "/compositor/edges.webp",
+        "/image/test.webp"
+    };
+
+    private final Map<String, byte[]> inputs;
+    private final List<String> failures = new ArrayList<>();
+
+    public CompositorCheck(Map<String, byte[]> inputs) {
+        this.inputs = inputs;
+    }
+
+    /**
+     * Run the check with the given arguments.
+     *
+     * @param args The arguments (see class description)
+     * @return {@code true} if all frames matched
+     * @throws IOException If loading the input files fails
+     */
+    public static boolean run(String[] args) throws IOException {
+        Map<String, byte[]> inputs = new LinkedHashMap<>();
+        for (String arg : args) {
+            Path file = Paths.get(arg);
+            inputs.put(file.getFileName().toString(), Files.readAllBytes(file));
+        }
+        if (inputs.isEmpty()) {
+            for (String fixture : FIXTURES) {
+                inputs.put(fixture, WebPDecoder.getBytesFromURL(CompositorCheck.class.getResource(fixture)));
+            }
+        }
+        return new CompositorCheck(inputs).run();
+    }
+
+    public boolean run() {
+        if (!WebPDecoder.isFrameDecodingSupported()) {
+            LOGGER.warning("Compositor: native library doesn't support decoding individual frames");
+            return false;
+        }
+        // Any executor uses the compositor, this one runs tasks right away
+        Executor callingThread = Runnable::run;
+        for (Map.Entry<String, byte[]> entry : inputs.entrySet()) {
+            String name = entry.getKey();
+            byte[] data = entry.getValue();
+            try {
+                WebPImage reference = WebPDecoder.decode(data);
+                int frames = reference.frameCount;
+                compare(name, "sequential", reference,
+                        WebPDecoder.decode(data, new DecodeOptions().setExecutor(callingThread)));
+                compare(name, "parallel", reference,
+                        WebPDecoder.decode(data, new DecodeOptions().setExecutor(ForkJoinPool.commonPool())));
+
+                int maxFrames = Math.max(1, frames / 2);
+                compare(name, "maxFrames " + maxFrames,
+                        WebPDecoder.decode(data, new DecodeOptions().setMaxFrames(maxFrames)),
+                        WebPDecoder.decode(data, new DecodeOptions().setMaxFrames(maxFrames)
+                                .setExecutor(callingThread)));
+                for (int i = 0; i < frames; i++) {
+                    compare(name, "frameIndex " + i,
+                            WebPDecoder.decode(data, new DecodeOptions().setFrameIndex(i)),
+                            WebPDecoder.decode(data, new DecodeOptions().setFrameIndex(i)
+                                    .setExecutor(callingThread)));
+                }
+                LOGGER.info(String.format("Compositor: %s (%d frames) checked", name, frames));
+            }
+            catch (WebPDecoderException ex) {
+                failures.add(name + ": " + ex);
+            }
+        }
+        if (WebPDecoder.getOpenNativeBuffers() != 0 || WebPDecoder.getOpenNativeDecoders() != 0) {
+            failures.add("Native resources not released");
+        }
+
+        if (failures.isEmpty()) {
+            LOGGER.info("Compositor: ok");
+            return true;
+        }
+        for (String failure : failures) {
+            LOGGER.warning("Compositor: " + failure);
+        }
+        return false;
+    }
+
+    private void compare(String name, String mode, WebPImage expected, WebPImage actual) {
+        String prefix = name + " (" + mode + "): ";
+        if (expected.canvasWidth != actual.canvasWidth
+                || expected.canvasHeight != actual.canvasHeight
+                || expected.loopCount != actual.loopCount
+                || expected.frameCount != actual.frameCount
+                || expected.duration != actual.duration
+                || expected.frames.size() != actual.frames.size()) {
+            failures.add(prefix + "metadata differs, expected " + expected + ", got " + actual);
+            return;
+        }
+        for (int i = 0; i < expected.frames.size(); i++) {
+            WebPImageFrame e = expected.frames.get(i);
+            WebPImageFrame a = actual.frames.get(i);
+            if (e.timestamp != a.timestamp || e.delay != a.delay) {
+                failures.add(String.format("%sframe %d timing differs (%d/%d, expected %d/%d)",
+                        prefix, i, a.timestamp, a.delay, e.timestamp, e.delay));
+            }
+            int[] expectedPixels = pixels(e.img);
+            int[] actualPixels = pixels(a.img);
+            if (!Arrays.equals(expectedPixels, actualPixels)) {
+                failures.add(String.format("%sframe %d differs in %d pixels",
+                        prefix, i, countDifferences(expectedPixels, actualPixels)));
+            }
+        }
+    }
+
+    private static int[] pixels(BufferedImage img) {
+        return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+    }
+
+    private static int countDifferences(int[] a, int[] b) {
+        if (a.length != b.length) {
+            return Math.max(a.length, b.length);
+        }
+        int result = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[i]) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,80 @@
+package webpdecoderjn;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Helpers for measuring memory usage of the process.
+ *
+ * @author tduva
+ */
+public class Memory {
+
+    private static final Path PROC_STATUS = Paths.get("/proc/self/status");
+
+    /**
+     * The resident set size of this process, which includes native memory.
+     * Only available on Linux (read from /proc).
+     *
+     * @return The RSS in bytes, or -1 if not available
+     */
+    public static long residentSetSize() {
+        if (!Files.isReadable(PROC_STATUS)) {
+            return -1;
+        }
+        try {
+            for (String line : Files.readAllLines(PROC_STATUS, StandardCharsets.UTF_8)) {
+                if (line.startsWith("VmRSS:")) {
+                    String value = line.substring(6).trim();
+                    // Always in kB
+                    return Long.parseLong(value.split("\\s+")[0]) * 1024;
+                }
+            }
+        }
+        catch (IOException | NumberFormatException ex) {
+            // Just return -1
+        }
+        return -1;
+    }
+
+    /**
+     * The currently used heap.
+     *
+     * @return The used heap in bytes
+     */
+    public static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * The used heap after requesting garbage collection, which should give a
+     * more stable value.
+     *
+     * @return The used heap in bytes
+     */
+    public static long usedHeapAfterGc() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return usedHeap();
+    }
+
+    public static String format(long bytes) {
+        if (bytes < 0) {
+            return "n/a";
+        }
+        return String.format("%.1fMB", bytes / 1024.0 / 1024.0);
+    }
+
+}
@@ -0,0 +1,236 @@
+package webpdecoderjn;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import webpdecoderjn.WebPDecoder.WebPDecoderException;
+
+/**
+ * Decodes valid, truncated and corrupted images from several threads for a
+ * while, to find native resource leaks (especially on error paths) and to
+ * check how throughput scales with the number of threads.
+ *
+ * <p>
+ * Native buffers and decoders are tracked through the counters in
+ * {@link WebPDecoder}, which must be back to 0 after each round. The resident
+ * set size (Linux only) and heap are compared between the first and the last
+ * soak round, with a generous tolerance since memory allocators don't
+ * necessarily return memory to the system.
+ *
+ * <pre>
+ * soak [threads] [secondsPerRound] [rounds] [file..]
+ * </pre>
+ *
+ * @author tduva
+ */
+public class Soak {
+
+    private static final Logger LOGGER = Logger.getLogger(Soak.class.getName());
+
+    private static final long MAX_RSS_GROWTH = 64 * 1024 * 1024;
+    private static final long MAX_HEAP_GROWTH = 16 * 1024 * 1024;
+
+    private final List<Input> inputs;
+    private final int maxThreads;
+    private final int seconds;
+    private final int rounds;
+
+    private final List<String> failures = new ArrayList<>();
+
+    public Soak(List<byte[]> validInputs, int maxThreads, int seconds, int rounds) {
+        this.inputs = createInputs(validInputs);
+        this.maxThreads = maxThreads;
+        this.seconds = seconds;
+        this.rounds = rounds;
+    }
+
+    /**
+     * Run the soak test with the given arguments.
+     *
+     * @param args The arguments (see class description)
+     * @return {@code true} if no issues were found
+     * @throws IOException If loading the input files fails
+     */
+    public static boolean run(String[] args) throws IOException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        List<byte[]> validInputs = new ArrayList<>();
+        for (int i = 3; i < args.length; i++) {
+            validInputs.add(Files.readAllBytes(Paths.get(args[i])));
+        }
+        if (validInputs.isEmpty()) {
+            validInputs.add(WebPDecoder.getBytesFromURL(WebPDecoder.class.getResource("/image/test.webp")));
+        }
+        return new Soak(validInputs, threads, seconds, rounds).run();
+    }
+
+    public boolean run() {
+        LOGGER.info(String.format("Soak: %d inputs, up to %d threads, %ds per round, %d rounds",
+                inputs.size(), maxThreads, seconds, rounds));
+
+        //--------------------------
+        // Scaling
+        //--------------------------
+        double singleThreaded = 0;
+        for (int threads = 1; threads <= maxThreads; threads = nextThreadCount(threads)) {
+            double perSecond = runRound(threads);
+            if (threads == 1) {
+                singleThreaded = perSecond;
+            }
+            LOGGER.info(String.format("Scaling: %d threads, %.1f decodes/s (%.2fx)",
+                    threads, perSecond, singleThreaded > 0 ? perSecond / singleThreaded : 0));
+        }
+
+        //--------------------------
+        // Soak
+        //--------------------------
+        long baseRss = -1;
+        long baseHeap = -1;
+        long rss = -1;
+        long heap = -1;
+        for (int round = 1; round <= rounds; round++) {
+            double perSecond = runRound(maxThreads);
+            rss = Memory.residentSetSize();
+            heap = Memory.usedHeapAfterGc();
+            if (round == 1) {
+                baseRss = rss;
+                baseHeap = heap;
+            }
+            LOGGER.info(String.format("Soak round %d: %.1f decodes/s, RSS %s, heap %s",
+                    round, perSecond, Memory.format(rss), Memory.format(heap)));
+        }
+        if (baseRss != -1 && rss - baseRss > MAX_RSS_GROWTH) {
+            failures.add(String.format("RSS grew from %s to %s",
+                    Memory.format(baseRss), Memory.format(rss)));
+        }
+        if (heap - baseHeap > MAX_HEAP_GROWTH) {
+            failures.add(String.format("Heap grew from %s to %s",
+                    Memory.format(baseHeap), Memory.format(heap)));
+        }
+
+        if (failures.isEmpty()) {
+            LOGGER.info("Soak: ok");
+            return true;
+        }
+        for (String failure : failures) {
+            LOGGER.warning("Soak: " + failure);
+        }
+        return false;
+    }
+
+    private int nextThreadCount(int threads) {
+        if (threads < maxThreads && threads * 2 > maxThreads) {
+            return maxThreads;
+        }
+        return threads * 2;
+    }
+
+    /**
+     * Decode random inputs from the given number of threads.
+     *
+     * @param threads The number of threads
+     * @return Decodes per second
+     */
+    private double runRound(int threads) {
+        AtomicLong decodes = new AtomicLong();
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < end) {
+                    decode(inputs.get(random.nextInt(inputs.size())));
+                    decodes.incrementAndGet();
+                }
+            }, "Soak-" + i);
+            workers.add(thread);
+        }
+        long start = System.nanoTime();
+        workers.forEach(Thread::start);
+        for (Thread thread : workers) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+        }
+        long duration = System.nanoTime() - start;
+        checkNativeResources();
+        return decodes.get() / (duration / 1_000_000_000.0);
+    }
+
+    private void decode(Input input) {
+        try {
+            WebPDecoder.decode(input.data);
+        }
+        catch (WebPDecoderException ex) {
+            // Damaged images may fail or still decode, both are fine
+            if (input.valid) {
+                addFailure("Valid input failed: " + ex);
+            }
+        }
+        catch (RuntimeException ex) {
+            addFailure("Unexpected exception: " + ex);
+        }
+    }
+
+    private void checkNativeResources() {
+        long buffers = WebPDecoder.getOpenNativeBuffers();
+        long decoders = WebPDecoder.getOpenNativeDecoders();
+        if (buffers != 0 || decoders != 0) {
+            addFailure(String.format("Native resources not released (%d buffers, %d decoders)",
+                    buffers, decoders));
+        }
+    }
+
+    private synchronized void addFailure(String failure) {
+        // Don't flood the output when something fails on every decode
+        if (!failures.contains(failure)) {
+            failures.add(failure);
+        }
+    }
+
+    private static List<Input> createInputs(List<byte[]> validInputs) {
+        // Fixed seed, so runs are comparable
+        Random random = new Random(1);
+        List<Input> result = new ArrayList<>();
+        for (byte[] data : validInputs) {
+            result.add(new Input(data, true));
+            for (int i = 0; i < 4; i++) {
+                result.add(new Input(Arrays.copyOf(data, random.nextInt(data.length)), false));
+            }
+            for (int i = 0; i < 4; i++) {
+                byte[] corrupted = data.clone();
+                int changes = 1 + random.nextInt(8);
+                for (int c = 0; c < changes; c++) {
+                    corrupted[random.nextInt(corrupted.length)] = (byte) random.nextInt(256);
+                }
+                result.add(new Input(corrupted, false));
+            }
+        }
+        return result;
+    }
+
+    private static class Input {
+
+        public final byte[] data;
+        public final boolean valid;
+
+        Input(byte[] data, boolean valid) {
+            this.data = data;
+            this.valid = valid;
+        }
+
+    }
+
+}